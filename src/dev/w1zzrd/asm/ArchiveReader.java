@@ -0,0 +1,332 @@
+package dev.w1zzrd.asm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal random-access zip archive reader. The central directory is parsed once when the archive is opened, after
+ * which any number of entries can be read without re-opening or re-scanning the archive. Entry reads only use absolute
+ * positioning on a private view of the archive data, so entries may be read concurrently. Zip64 archives are supported
+ * as long as the archive itself fits in a single buffer (2 GiB).
+ */
+final class ArchiveReader implements Closeable {
+    /**
+     * Archives larger than this (in bytes) are memory-mapped rather than read to the heap
+     */
+    static final long MAP_THRESHOLD = 1L << 20;
+
+    private static final int SIG_LOCAL_HEADER = 0x04034b50;
+    private static final int SIG_CENTRAL_HEADER = 0x02014b50;
+    private static final int SIG_END_OF_CENTRAL = 0x06054b50;
+    private static final int SIG_ZIP64_END_OF_CENTRAL = 0x06064b50;
+    private static final int SIG_ZIP64_LOCATOR = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final ByteBuffer data;
+    private final RandomAccessFile file;
+    private final Map<String, Entry> entries;
+
+    private ArchiveReader(ByteBuffer data, RandomAccessFile file) throws IOException {
+        this.data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.file = file;
+        this.entries = Collections.unmodifiableMap(readCentralDirectory(this.data));
+    }
+
+    /**
+     * Open an archive file. Large archives are memory-mapped, small ones are read to the heap in one go
+     * @param archive Archive to open
+     * @return Reader for the given archive
+     * @throws IOException If the archive could not be read or is not a valid zip archive
+     */
+    static ArchiveReader open(File archive) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE)
+                throw new ZipException(String.format("Archive too large: %s", archive));
+
+            if (size > MAP_THRESHOLD)
+                return new ArchiveReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), raf);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0)
+                    throw new ZipException(String.format("Unexpected end of archive: %s", archive));
+
+            buffer.flip();
+            raf.close();
+            return new ArchiveReader(buffer, null);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an archive which has already been loaded into memory (e.g. an archive nested inside another archive)
+     * @param archive Archive data
+     * @return Reader for the given archive
+     * @throws IOException If the data is not a valid zip archive
+     */
+    static ArchiveReader open(ByteBuffer archive) throws IOException {
+        return new ArchiveReader(archive, null);
+    }
+
+    /**
+     * Get the names of all entries in the archive, in central directory order
+     * @return Entry names
+     */
+    Set<String> getEntryNames() {
+        return entries.keySet();
+    }
+
+    /**
+     * Check whether or not the archive contains a given entry
+     * @param name Name of the entry
+     * @return True if the entry exists, else false
+     */
+    boolean hasEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Read the uncompressed contents of an entry. The size of the returned data is taken from the central directory
+     * @param name Name of the entry to read
+     * @return Entry data or null if the entry does not exist
+     * @throws IOException If the entry could not be read
+     */
+    byte[] read(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null)
+            return null;
+
+        ByteBuffer view = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        if (view.getInt(entry.headerOffset) != SIG_LOCAL_HEADER)
+            throw new ZipException(String.format("Bad local header for entry %s", name));
+
+        // Local extra field length may differ from the central directory, so it has to be read from the local header
+        int dataOffset = entry.headerOffset +
+                LOCAL_HEADER_SIZE +
+                (view.getShort(entry.headerOffset + 26) & 0xFFFF) +
+                (view.getShort(entry.headerOffset + 28) & 0xFFFF);
+
+        view.position(dataOffset);
+        byte[] result = new byte[entry.size];
+
+        switch (entry.method) {
+            case METHOD_STORED:
+                view.get(result);
+                break;
+
+            case METHOD_DEFLATED: {
+                // Inflater only accepts heap arrays in Java 8. Pad with a dummy byte as required by nowrap-mode
+                byte[] compressed = new byte[entry.compressedSize + 1];
+                view.get(compressed, 0, entry.compressedSize);
+
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(compressed);
+
+                    int total = 0;
+                    while (total < result.length && !inflater.finished()) {
+                        int read = inflater.inflate(result, total, result.length - total);
+                        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+
+                        total += read;
+                    }
+
+                    if (total != result.length)
+                        throw new ZipException(String.format("Truncated entry %s", name));
+                } catch (DataFormatException e) {
+                    throw new ZipException(String.format("Corrupt entry %s: %s", name, e.getMessage()));
+                } finally {
+                    inflater.end();
+                }
+                break;
+            }
+
+            default:
+                throw new ZipException(String.format("Unsupported compression method %d for entry %s", entry.method, name));
+        }
+
+        return result;
+    }
+
+    /**
+     * Open an archive nested inside this archive (e.g. a library jar inside a fat jar). Stored (uncompressed) entries,
+     * as usually found in fat jars, are read in place; only compressed entries are inflated
+     * @param name Name of the entry holding the nested archive
+     * @return Reader for the nested archive or null if the entry does not exist. The reader remains valid until this
+     * reader is closed
+     * @throws IOException If the entry could not be read or is not a valid zip archive
+     */
+    ArchiveReader openNested(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null)
+            return null;
+
+        if (entry.method != METHOD_STORED)
+            return open(ByteBuffer.wrap(read(name)));
+
+        if (data.getInt(entry.headerOffset) != SIG_LOCAL_HEADER)
+            throw new ZipException(String.format("Bad local header for entry %s", name));
+
+        int dataOffset = entry.headerOffset +
+                LOCAL_HEADER_SIZE +
+                (data.getShort(entry.headerOffset + 26) & 0xFFFF) +
+                (data.getShort(entry.headerOffset + 28) & 0xFFFF);
+
+        ByteBuffer view = data.duplicate();
+        view.position(dataOffset);
+        view.limit(dataOffset + entry.size);
+        return open(view.slice());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+
+    private static Map<String, Entry> readCentralDirectory(ByteBuffer data) throws IOException {
+        // The end of central directory record is followed by a comment of at most 0xFFFF bytes
+        final int limit = Math.max(0, data.limit() - END_OF_CENTRAL_SIZE - 0xFFFF);
+        int eocd = -1;
+        for (int i = data.limit() - END_OF_CENTRAL_SIZE; i >= limit; --i)
+            if (data.getInt(i) == SIG_END_OF_CENTRAL) {
+                eocd = i;
+                break;
+            }
+
+        if (eocd == -1)
+            throw new ZipException("No end of central directory record found");
+
+        long count = data.getShort(eocd + 10) & 0xFFFF;
+        long offset = data.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+        // Archives with more than 0xFFFF entries (common for fat jars) declare the real values in a zip64 record
+        if ((count == 0xFFFF || offset == 0xFFFFFFFFL) &&
+                eocd >= ZIP64_LOCATOR_SIZE &&
+                data.getInt(eocd - ZIP64_LOCATOR_SIZE) == SIG_ZIP64_LOCATOR) {
+            long zip64End = data.getLong(eocd - ZIP64_LOCATOR_SIZE + 8);
+
+            if (zip64End > Integer.MAX_VALUE || data.getInt((int) zip64End) != SIG_ZIP64_END_OF_CENTRAL)
+                throw new ZipException("Bad zip64 end of central directory record");
+
+            count = data.getLong((int) zip64End + 32);
+            offset = data.getLong((int) zip64End + 48);
+        }
+
+        if (count > Integer.MAX_VALUE || offset > Integer.MAX_VALUE)
+            throw new ZipException("Central directory too large");
+
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>((int) Math.min(count * 2, 1 << 20));
+        int pos = (int) offset;
+        for (int i = 0; i < count; ++i) {
+            if (data.getInt(pos) != SIG_CENTRAL_HEADER)
+                throw new ZipException("Bad central directory header");
+
+            int method = data.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = data.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = data.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = data.getShort(pos + 28) & 0xFFFF;
+            int extraLength = data.getShort(pos + 30) & 0xFFFF;
+            int commentLength = data.getShort(pos + 32) & 0xFFFF;
+            long headerOffset = data.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || headerOffset == 0xFFFFFFFFL) {
+                // Only the values which overflowed are present in the zip64 extra field, in this order
+                int field = findExtraField(data, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA_ID);
+                if (field == -1)
+                    throw new ZipException("Missing zip64 extra field");
+
+                if (size == 0xFFFFFFFFL) {
+                    size = data.getLong(field);
+                    field += 8;
+                }
+
+                if (compressedSize == 0xFFFFFFFFL) {
+                    compressedSize = data.getLong(field);
+                    field += 8;
+                }
+
+                if (headerOffset == 0xFFFFFFFFL)
+                    headerOffset = data.getLong(field);
+            }
+
+            if (compressedSize >= Integer.MAX_VALUE || size >= Integer.MAX_VALUE || headerOffset > Integer.MAX_VALUE)
+                throw new ZipException("Archive entry too large");
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameView = data.duplicate();
+            nameView.position(pos + CENTRAL_HEADER_SIZE);
+            nameView.get(name);
+
+            entries.put(
+                    new String(name, StandardCharsets.UTF_8),
+                    new Entry(method, (int) compressedSize, (int) size, (int) headerOffset)
+            );
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Find the data of an extra field with a given header id
+     * @param data Archive data
+     * @param start Offset of the first extra field
+     * @param length Total length of all extra fields
+     * @param id Header id of the extra field to find
+     * @return Offset of the data of the extra field or -1 if it could not be found
+     */
+    private static int findExtraField(ByteBuffer data, int start, int length, int id) {
+        for (int pos = start; pos + 4 <= start + length; pos += 4 + (data.getShort(pos + 2) & 0xFFFF))
+            if ((data.getShort(pos) & 0xFFFF) == id)
+                return pos + 4;
+
+        return -1;
+    }
+
+    private static final class Entry {
+        private final int method;
+        private final int compressedSize;
+        private final int size;
+        private final int headerOffset;
+
+        private Entry(int method, int compressedSize, int size, int headerOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+}
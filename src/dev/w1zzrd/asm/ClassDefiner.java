@@ -0,0 +1,364 @@
+package dev.w1zzrd.asm;
+
+import dev.w1zzrd.asm.exception.ClassDefinitionException;
+import jdk.internal.org.objectweb.asm.ClassReader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Defines woven classes in the JVM.<br>
+ * <br>
+ * A definer either targets a {@link MethodHandles.Lookup} or a {@link ClassLoader}. Lookups are the preferred
+ * mechanism: classes are defined through {@code Lookup.defineClass}, which requires no special access, but only
+ * accepts classes in the same package as the lookup class. Definition through a class loader invokes the protected
+ * {@link ClassLoader} {@code defineClass} method, which requires {@code java.lang} to be open to this library on
+ * Java 9+.<br>
+ * <br>
+ * All reflective lookups are done once per JVM; definitions only invoke cached method handles.
+ */
+public final class ClassDefiner {
+    private final MethodHandles.Lookup lookup;
+    private final ClassLoader loader;
+
+    /**
+     * Create a definer which defines classes in the package (and class loader) of a lookup class. The lookup must
+     * have package access
+     * @param lookup Lookup to define classes through
+     */
+    public ClassDefiner(MethodHandles.Lookup lookup) {
+        this.lookup = lookup;
+        this.loader = lookup.lookupClass().getClassLoader();
+    }
+
+    /**
+     * Create a definer which defines classes directly in a class loader
+     * @param loader Loader to define classes in
+     */
+    public ClassDefiner(ClassLoader loader) {
+        this.lookup = null;
+        this.loader = loader;
+    }
+
+    /**
+     * Define a class
+     * @param data Class file data
+     * @return The defined class
+     * @throws ClassDefinitionException If the class could not be defined
+     */
+    public Class<?> define(byte[] data) {
+        final String name = new ClassReader(data).getClassName();
+
+        try {
+            if (lookup != null)
+                return (Class<?>) LookupDefinition.handle().invokeExact(lookup, data);
+
+            return (Class<?>) LoaderDefinition.handle().invokeExact(loader, name.replace('/', '.'), data, 0, data.length);
+        } catch (ClassDefinitionException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ClassDefinitionException(String.format("Could not define class %s", name), t);
+        }
+    }
+
+    /**
+     * Define a batch of classes. Classes are defined in dependency order, such that superclasses and interfaces which
+     * are part of the batch are defined before the classes extending them. Failures are reported per class rather
+     * than aborting the batch; a class depending on a class which could not be defined is not defined either
+     * @param classes Class file data of the classes to define
+     * @return Definition results, in definition order
+     */
+    public List<Result> defineAll(Collection<byte[]> classes) {
+        // Index the batch by class name, so dependencies can be resolved without parsing anything but class headers
+        final LinkedHashMap<String, byte[]> byName = new LinkedHashMap<>();
+        final HashMap<String, List<String>> dependencies = new HashMap<>();
+        for (byte[] data : classes) {
+            final ClassReader reader = new ClassReader(data);
+            byName.put(reader.getClassName(), data);
+
+            final ArrayList<String> depends = new ArrayList<>();
+            if (reader.getSuperName() != null)
+                depends.add(reader.getSuperName());
+            depends.addAll(Arrays.asList(reader.getInterfaces()));
+            dependencies.put(reader.getClassName(), depends);
+        }
+
+        final LinkedHashMap<String, Result> results = new LinkedHashMap<>();
+        final HashSet<String> visiting = new HashSet<>();
+        for (String name : byName.keySet())
+            defineOrdered(name, byName, dependencies, visiting, results);
+
+        return new ArrayList<>(results.values());
+    }
+
+    /**
+     * Compile and define a batch of woven classes (see {@link #defineAll(Collection)})
+     * @param targets Woven classes to define
+     * @return Definition results, in definition order
+     */
+    public List<Result> defineAllWoven(Collection<Combine> targets) {
+        final ArrayList<byte[]> classes = new ArrayList<>(targets.size());
+        for (Combine target : targets)
+            classes.add(target.toByteArray());
+
+        return defineAll(classes);
+    }
+
+    /**
+     * Define a hidden class (Java 15+) in the package of the lookup class. Hidden classes can't be referenced by name
+     * and may be unloaded independently of their defining loader, which makes them suitable for synthetic helpers
+     * @param data Class file data
+     * @param initialize Whether or not to initialize the class
+     * @return The defined class
+     * @throws ClassDefinitionException If this definer doesn't target a lookup, hidden classes aren't supported by the
+     * running JVM or the class could not be defined
+     */
+    public Class<?> defineHidden(byte[] data, boolean initialize) {
+        if (lookup == null)
+            throw new ClassDefinitionException("Hidden classes can only be defined through a lookup");
+
+        try {
+            final MethodHandles.Lookup hidden = (MethodHandles.Lookup) HiddenDefinition.handle().invokeExact(
+                    lookup,
+                    data,
+                    initialize,
+                    HiddenDefinition.noOptions
+            );
+
+            return hidden.lookupClass();
+        } catch (ClassDefinitionException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ClassDefinitionException(
+                    String.format("Could not define hidden class %s", new ClassReader(data).getClassName()),
+                    t
+            );
+        }
+    }
+
+    private void defineOrdered(
+            String name,
+            Map<String, byte[]> byName,
+            Map<String, List<String>> dependencies,
+            Set<String> visiting,
+            Map<String, Result> results
+    ) {
+        if (results.containsKey(name))
+            return;
+
+        if (!visiting.add(name)) {
+            results.put(name, new Result(name, null, new ClassDefinitionException(String.format(
+                    "Circular class hierarchy involving %s",
+                    name
+            ))));
+            return;
+        }
+
+        for (String dependency : dependencies.get(name))
+            if (byName.containsKey(dependency)) {
+                defineOrdered(dependency, byName, dependencies, visiting, results);
+
+                final Result dependencyResult = results.get(dependency);
+                if (!dependencyResult.isDefined() && !results.containsKey(name)) {
+                    results.put(name, new Result(name, null, new ClassDefinitionException(String.format(
+                            "Could not define %s since %s could not be defined",
+                            name,
+                            dependency
+                    ), dependencyResult.getFailure())));
+                }
+            }
+
+        visiting.remove(name);
+
+        // A failed dependency or a cycle has already been reported
+        if (results.containsKey(name))
+            return;
+
+        Result result;
+        try {
+            result = new Result(name, define(byName.get(name)), null);
+        } catch (ClassDefinitionException e) {
+            result = new Result(name, null, e);
+        }
+
+        results.put(name, result);
+    }
+
+    /**
+     * Result of defining a class in a batch
+     */
+    public static final class Result {
+        private final String name;
+        private final Class<?> definedClass;
+        private final ClassDefinitionException failure;
+
+        private Result(String name, Class<?> definedClass, ClassDefinitionException failure) {
+            this.name = name;
+            this.definedClass = definedClass;
+            this.failure = failure;
+        }
+
+        /**
+         * Get the internal name of the class
+         * @return Internal name of the class
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDefined() {
+            return definedClass != null;
+        }
+
+        /**
+         * Get the defined class
+         * @return Defined class, or null if definition failed
+         */
+        public Class<?> getDefinedClass() {
+            return definedClass;
+        }
+
+        /**
+         * Get the reason the class could not be defined
+         * @return Definition failure, or null if the class was defined
+         */
+        public ClassDefinitionException getFailure() {
+            return failure;
+        }
+
+        /**
+         * Get the defined class, or throw the definition failure
+         * @return Defined class
+         * @throws ClassDefinitionException If the class could not be defined
+         */
+        public Class<?> get() {
+            if (failure != null)
+                throw failure;
+
+            return definedClass;
+        }
+    }
+
+
+    // Method handles are resolved lazily (once), so each definition mechanism only has to be available if it's used
+
+    private static final class LookupDefinition {
+        private static final MethodHandle defineClass;
+        private static final Throwable unavailable;
+
+        static {
+            MethodHandle handle = null;
+            Throwable failure = null;
+            try {
+                // Lookup.defineClass is Java 9+
+                handle = MethodHandles.publicLookup().findVirtual(
+                        MethodHandles.Lookup.class,
+                        "defineClass",
+                        MethodType.methodType(Class.class, byte[].class)
+                );
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                failure = e;
+            }
+
+            defineClass = handle;
+            unavailable = failure;
+        }
+
+        static MethodHandle handle() {
+            if (defineClass == null)
+                throw new ClassDefinitionException("Lookup-based class definition requires Java 9+", unavailable);
+
+            return defineClass;
+        }
+    }
+
+    private static final class LoaderDefinition {
+        private static final MethodHandle defineClass;
+        private static final Throwable unavailable;
+
+        static {
+            MethodHandle handle = null;
+            Throwable failure = null;
+            try {
+                final Method method = ClassLoader.class.getDeclaredMethod(
+                        "defineClass",
+                        String.class,
+                        byte[].class,
+                        int.class,
+                        int.class
+                );
+                method.setAccessible(true);
+                handle = MethodHandles.lookup().unreflect(method);
+            } catch (Exception e) {
+                // Access to java.lang is denied (Java 9+ without --add-opens java.base/java.lang)
+                failure = e;
+            }
+
+            defineClass = handle;
+            unavailable = failure;
+        }
+
+        static MethodHandle handle() {
+            if (defineClass == null)
+                throw new ClassDefinitionException(
+                        "ClassLoader.defineClass is inaccessible. Define classes through a Lookup or open java.lang",
+                        unavailable
+                );
+
+            return defineClass;
+        }
+    }
+
+    private static final class HiddenDefinition {
+        private static final MethodHandle defineHiddenClass;
+        private static final Object noOptions;
+        private static final Throwable unavailable;
+
+        static {
+            MethodHandle handle = null;
+            Object options = null;
+            Throwable failure = null;
+            try {
+                // Lookup.defineHiddenClass and Lookup.ClassOption are Java 15+
+                final Class<?> optionType = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                options = Array.newInstance(optionType, 0);
+                handle = MethodHandles.publicLookup()
+                        .findVirtual(
+                                MethodHandles.Lookup.class,
+                                "defineHiddenClass",
+                                MethodType.methodType(
+                                        MethodHandles.Lookup.class,
+                                        byte[].class,
+                                        boolean.class,
+                                        options.getClass()
+                                )
+                        )
+                        .asFixedArity()
+                        .asType(MethodType.methodType(
+                                MethodHandles.Lookup.class,
+                                MethodHandles.Lookup.class,
+                                byte[].class,
+                                boolean.class,
+                                Object.class
+                        ));
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+                failure = e;
+            }
+
+            defineHiddenClass = handle;
+            noOptions = options;
+            unavailable = failure;
+        }
+
+        static MethodHandle handle() {
+            if (defineHiddenClass == null)
+                throw new ClassDefinitionException("Hidden class definition requires Java 15+", unavailable);
+
+            return defineHiddenClass;
+        }
+    }
+}
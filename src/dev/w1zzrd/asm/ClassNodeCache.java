@@ -0,0 +1,328 @@
+package dev.w1zzrd.asm;
+
+import jdk.internal.org.objectweb.asm.tree.AbstractInsnNode;
+import jdk.internal.org.objectweb.asm.tree.ClassNode;
+import jdk.internal.org.objectweb.asm.tree.FieldNode;
+import jdk.internal.org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import jdk.internal.org.objectweb.asm.tree.MethodNode;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of parsed class nodes, keyed by class name and class loader. Cached nodes are only returned for the
+ * exact class data they were parsed from, which is retained alongside each node and compared on every lookup.
+ * The cache is bounded by the estimated retained size of the cached nodes. Cached nodes are never handed out
+ * directly: since {@link Combine} mutates both target and graft nodes, every lookup returns a private copy of the
+ * cached tree, which is considerably cheaper to produce than re-parsing the class data. Copies are made outside the
+ * cache lock, so concurrent lookups of different classes never wait for each other's copies.<br>
+ * <br>
+ * Class loaders are only weakly referenced: nodes loaded from a loader which has been collected are purged.
+ */
+public final class ClassNodeCache {
+    /**
+     * Default bound on the estimated retained size of all cached nodes (in bytes)
+     */
+    public static final long DEFAULT_CAPACITY = 32L << 20;
+
+    /**
+     * How cached nodes are evicted
+     */
+    public enum Eviction {
+        /**
+         * Least-recently used nodes are evicted when the cache exceeds its capacity
+         */
+        LRU,
+
+        /**
+         * As with {@link #LRU}, but nodes are additionally only softly reachable, so the garbage collector may evict
+         * them under memory pressure
+         */
+        SOFT
+    }
+
+    private final LinkedHashMap<Key, Slot> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ReferenceQueue<ClassLoader> collectedLoaders = new ReferenceQueue<>();
+    private final long capacity;
+    private final Eviction eviction;
+
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ClassNodeCache(long capacity, Eviction eviction) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Cache capacity cannot be negative");
+
+        this.capacity = capacity;
+        this.eviction = eviction;
+    }
+
+    public ClassNodeCache() {
+        this(DEFAULT_CAPACITY, Eviction.LRU);
+    }
+
+    /**
+     * Get a class node for the given class data, parsing it only if no node for the same name, loader and content is
+     * cached
+     * @param name Name of the class (or other unique resource identifier)
+     * @param loader Loader the class data was loaded from (may be null)
+     * @param data Class data
+     * @return A private copy of the cached class node
+     */
+    public ClassNode get(String name, ClassLoader loader, byte[] data) {
+        final Key key = new Key(name, loader, collectedLoaders);
+
+        Slot hit = null;
+        ClassNode cached = null;
+        synchronized (this) {
+            purge();
+
+            Slot slot = entries.get(key);
+            if (slot != null && Arrays.equals(slot.data, data)) {
+                cached = slot.get();
+                if (cached != null) {
+                    ++hits;
+                    hit = slot;
+                } else {
+                    // Softly referenced node was collected
+                    ++evictions;
+                }
+            }
+
+            if (hit == null)
+                ++misses;
+        }
+
+        if (hit != null)
+            return hit.copy(cached);
+
+        // Parse outside the lock so concurrent misses don't serialize on each other
+        ClassNode node = Loader.readClass(data);
+        long nodeWeight = estimateWeight(node, data);
+
+        // Nodes which could never fit are not cached at all
+        if (nodeWeight > capacity)
+            return node;
+
+        // Class data is copied, since callers may reuse their buffers
+        final Slot slot = new Slot(node, data.clone(), nodeWeight, eviction);
+        synchronized (this) {
+            purge();
+
+            Slot previous = entries.put(key, slot);
+            if (previous != null)
+                weight -= previous.weight;
+
+            weight += nodeWeight;
+            trim();
+        }
+
+        // The cached node must stay pristine
+        return slot.copy(node);
+    }
+
+    /**
+     * Remove all cached nodes. Statistics are not reset
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+
+        // Keys of cleared entries no longer need purging
+        while (collectedLoaders.poll() != null);
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Get the estimated retained size of all cached nodes
+     * @return Estimated size in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        purge();
+        return entries.size();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public Eviction getEviction() {
+        return eviction;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            return String.format(
+                    "ClassNodeCache{size=%d, weight=%d/%d, hits=%d, misses=%d, evictions=%d}",
+                    entries.size(),
+                    weight,
+                    capacity,
+                    hits,
+                    misses,
+                    evictions
+            );
+        }
+    }
+
+    // Remove nodes loaded from class loaders which have been collected
+    private void purge() {
+        for (Reference<? extends ClassLoader> ref = collectedLoaders.poll(); ref != null; ref = collectedLoaders.poll()) {
+            Slot slot = entries.remove(((LoaderReference) ref).key);
+            if (slot != null)
+                weight -= slot.weight;
+        }
+    }
+
+    // Evict least-recently used nodes until we're within the capacity bound
+    private void trim() {
+        Iterator<Slot> iterator = entries.values().iterator();
+        while (weight > capacity && iterator.hasNext()) {
+            Slot slot = iterator.next();
+            iterator.remove();
+            weight -= slot.weight;
+            ++evictions;
+        }
+    }
+
+    /**
+     * Create a deep copy of a class node without re-parsing any class data
+     * @param node Node to copy
+     * @return Copy of the node
+     */
+    static ClassNode copy(ClassNode node) {
+        // Labels map back to the node they were created for, so they have to be reset to get new label nodes
+        for (MethodNode mNode : node.methods)
+            mNode.instructions.resetLabels();
+
+        ClassNode copy = new ClassNode();
+        node.accept(copy);
+
+        // Bootstrap arguments are passed to the copy as-is, but are rewritten when grafting lambdas
+        for (MethodNode mNode : copy.methods)
+            for (AbstractInsnNode insn = mNode.instructions.getFirst(); insn != null; insn = insn.getNext())
+                if (insn instanceof InvokeDynamicInsnNode)
+                    ((InvokeDynamicInsnNode) insn).bsmArgs = Arrays.copyOf(
+                            ((InvokeDynamicInsnNode) insn).bsmArgs,
+                            ((InvokeDynamicInsnNode) insn).bsmArgs.length
+                    );
+
+        return copy;
+    }
+
+    /**
+     * Roughly estimate the amount of memory retained by a class node
+     * @param node Parsed class node
+     * @param data Class data the node was parsed from
+     * @return Estimated retained size in bytes
+     */
+    static long estimateWeight(ClassNode node, byte[] data) {
+        // Strings retained by the tree roughly correspond to the constant pool, which is bounded by the class size. The
+        // class data itself is retained for comparison
+        long estimate = 256 + data.length * 3L;
+
+        for (MethodNode mNode : node.methods) {
+            estimate += 128;
+            estimate += mNode.instructions.size() * 48L;
+            if (mNode.localVariables != null)
+                estimate += mNode.localVariables.size() * 40L;
+            if (mNode.tryCatchBlocks != null)
+                estimate += mNode.tryCatchBlocks.size() * 40L;
+        }
+
+        for (FieldNode ignored : node.fields)
+            estimate += 64;
+
+        return estimate;
+    }
+
+
+    private static final class Key {
+        private final String name;
+        private final LoaderReference loader;
+        private final int hash;
+
+        private Key(String name, ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            this.name = name;
+            this.loader = loader == null ? null : new LoaderReference(loader, queue, this);
+            this.hash = 31 * name.hashCode() + System.identityHashCode(loader);
+        }
+
+        private ClassLoader getLoader() {
+            return loader == null ? null : loader.get();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            if (hash != that.hash || !name.equals(that.name) || (loader == null) != (that.loader == null))
+                return false;
+
+            // Keys of collected loaders are only equal to themselves, so they can't be confused with each other
+            ClassLoader thisLoader = getLoader();
+            return thisLoader == that.getLoader() && (loader == null || thisLoader != null);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class LoaderReference extends WeakReference<ClassLoader> {
+        private final Key key;
+
+        private LoaderReference(ClassLoader loader, ReferenceQueue<ClassLoader> queue, Key key) {
+            super(loader, queue);
+            this.key = key;
+        }
+    }
+
+    private static final class Slot {
+        private final ClassNode strongNode;
+        private final SoftReference<ClassNode> softNode;
+        private final byte[] data;
+        private final long weight;
+
+        private Slot(ClassNode node, byte[] data, long weight, Eviction eviction) {
+            this.strongNode = eviction == Eviction.SOFT ? null : node;
+            this.softNode = eviction == Eviction.SOFT ? new SoftReference<>(node) : null;
+            this.data = data;
+            this.weight = weight;
+        }
+
+        private ClassNode get() {
+            return strongNode != null ? strongNode : softNode.get();
+        }
+
+        // Copying resets the labels of the cached node, so copies of the same node can't be made concurrently
+        private synchronized ClassNode copy(ClassNode node) {
+            return ClassNodeCache.copy(node);
+        }
+    }
+
+}
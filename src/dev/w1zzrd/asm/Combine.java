@@ -1,18 +1,24 @@
 package dev.w1zzrd.asm;
 
 import dev.w1zzrd.asm.analysis.AsmAnnotation;
+import dev.w1zzrd.asm.analysis.FrameState;
+import dev.w1zzrd.asm.exception.ClassDefinitionException;
 import dev.w1zzrd.asm.exception.MethodNodeResolutionException;
 import dev.w1zzrd.asm.exception.SignatureCheckException;
 import dev.w1zzrd.asm.exception.SignatureInstanceMismatchException;
+import dev.w1zzrd.asm.signature.DescriptorView;
 import dev.w1zzrd.asm.signature.MethodSignature;
 import dev.w1zzrd.asm.signature.TypeSignature;
+import jdk.internal.org.objectweb.asm.ClassReader;
+import jdk.internal.org.objectweb.asm.ClassVisitor;
 import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.FieldVisitor;
 import jdk.internal.org.objectweb.asm.Handle;
+import jdk.internal.org.objectweb.asm.MethodVisitor;
 import jdk.internal.org.objectweb.asm.Opcodes;
 import jdk.internal.org.objectweb.asm.Type;
 import jdk.internal.org.objectweb.asm.tree.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandles;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -22,20 +28,66 @@ public class Combine {
     public static final String VAR_ASSERT_NAME = "$assertionsDisabled";
     public static final int VAR_ASSERT_FLAGS = Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_FINAL;
 
+    // Latest ASM API supported by the running JDK. Older APIs reject classes using newer class file features (e.g.
+    // nest members), but the newer constants don't exist in the ASM bundled with older JDKs
+    private static final int ASM_API = latestAsmApi();
+
 
     private final ArrayList<DynamicSourceUnit> graftSources = new ArrayList<>();
 
     private final ClassNode target;
 
+    // Original class data of the target in streaming mode (see Combine(ClassReader)), else null
+    private ClassReader reader;
+
+    // Methods of the target which have yet to be read from the original class data, keyed by name and descriptor
+    private final HashMap<String, MethodNode> unread = new HashMap<>();
+
+    // Member indices of the target class. These are kept up to date as members are grafted onto the target, until the
+    // target node is exposed through getClassNode()
+    private final HashMap<String, List<MethodNode>> methodsByName = new HashMap<>();
+    private final HashMap<String, MethodNode> methodsByKey = new HashMap<>();
+    private final HashMap<String, FieldNode> fieldsByName = new HashMap<>();
+
+    // Whether the target node has been handed out, after which it may be modified at any time without our knowledge
+    private boolean exposed = false;
+
 
     public Combine(ClassNode target) {
         this.target = target;
+        indexMembers();
+    }
+
+    /**
+     * Create a merger in streaming mode. Only the class header and fields of the target are parsed up front; methods
+     * are parsed when they are first targeted by a graft. When compiled, methods which were never parsed are copied
+     * byte-for-byte from the original class data, as is the constant pool, and parsed methods are written after them.
+     * <br>
+     * Calling {@link #getClassNode()} parses all methods and ends streaming mode, since the returned node may then be
+     * modified arbitrarily
+     * @param target Reader of the original class data of the target
+     */
+    public Combine(ClassReader target) {
+        this.target = new ClassNode();
+        this.reader = target;
+
+        target.accept(new ClassVisitor(ASM_API, this.target) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                final MethodNode stub = new MethodNode(access, name, desc, signature, exceptions);
+                Combine.this.target.methods.add(stub);
+                unread.put(methodKey(name, desc), stub);
+                return null;
+            }
+        }, 0);
+
+        indexMembers();
     }
 
     public void inject(MethodNode node, GraftSource source) {
         final AsmAnnotation<Inject> annotation = source.getMethodInjectAnnotation(node);
 
-        switch ((InPlaceInjection)annotation.getEnumEntry("value")) {
+        switch (annotation.materialize().value()) {
             case INSERT: // Explicitly insert a *new* method
                 insert(node, source);
                 break;
@@ -75,15 +127,15 @@ public class Combine {
         adaptMethod(extension, source);
 
         // Get the method signatures so we know what we're working with local-variable-wise ;)
-        final MethodSignature msig = new MethodSignature(resolution.node.desc);
-        final MethodSignature xsig = new MethodSignature(extension.desc);
+        final DescriptorView msig = new DescriptorView(resolution.node.desc);
+        final DescriptorView xsig = new DescriptorView(extension.desc);
 
         // Get total argument count, including implicit "this" argument
         final int graftArgCount = xsig.getArgCount() + (isStatic(extension) ? 0 : 1);
         final int targetArgCount = msig.getArgCount() + (isStatic(resolution.node) ? 0 : 1);
 
         // If graft method cares about the return value of the original method, i.e. accepts it as an extra "argument"
-        if (acceptReturn && !msig.getRet().isVoidType()) {
+        if (acceptReturn && !msig.isVoid()) {
             //noinspection OptionalGetWithoutIsPresent
             LocalVariableNode retVar = extension.localVariables
                     .stream()
@@ -100,6 +152,7 @@ public class Combine {
             // Make space in the original frames for the return var
             // This isn't an optimal solution, but it works for now
             adjustFramesForRetVar(resolution.node.instructions, targetArgCount);
+            FrameState.invalidate(resolution.node);
 
             // Replace return instructions with GOTOs to the last instruction in the list
             // Return values are stored in retVar
@@ -150,15 +203,15 @@ public class Combine {
         final MethodNode target = resolveMethod(extension, source, false).node;
         adaptMethod(extension, source);
 
-        MethodSignature sig = new MethodSignature(extension.desc);
+        final int argCount = new DescriptorView(extension.desc).getArgCount();
 
-        target.localVariables.addAll(getVarsOver(extension.localVariables, sig.getArgCount()));
+        target.localVariables.addAll(getVarsOver(extension.localVariables, argCount));
         extension.instructions.add(target.instructions);
 
         target.instructions = extension.instructions;
 
         // Extend argument scope to cover prepended code
-        for (int i = 0; i < sig.getArgCount(); ++i)
+        for (int i = 0; i < argCount; ++i)
             adjustArgument(target, getVarAt(target.localVariables, i), true, false);
 
         target.tryCatchBlocks.addAll(extension.tryCatchBlocks);
@@ -195,11 +248,11 @@ public class Combine {
         MethodNode replace = findMethodNode(source.getMethodTargetName(inject), source.getMethodTargetSignature(inject, false));
 
         if (replace != null)
-            this.target.methods.remove(replace);
+            removeMethod(replace);
 
         adaptMethod(inject, source);
 
-        this.target.methods.add(inject);
+        addMethod(inject);
     }
 
     public void inject(FieldNode field, GraftSource source) {
@@ -207,13 +260,11 @@ public class Combine {
             field.desc = target.name;
 
         // Remove existing field with same name
-        for (FieldNode node : target.fields)
-            if (node.name.equals(field.name)) {
-                target.fields.remove(node);
-                break;
-            }
+        final FieldNode existing = findFieldNode(field.name);
+        if (existing != null)
+            removeField(existing);
 
-        target.fields.add(field);
+        addField(field);
     }
 
     public void setSuperClass(String superDesc) {
@@ -223,7 +274,7 @@ public class Combine {
             return;
         }
 
-        if (new TypeSignature(superDesc).isPrimitive())
+        if (TypeSignature.of(superDesc).isPrimitive())
             throw new SignatureCheckException("Superclass cannot be primitive: "+superDesc);
 
         target.superName = superDesc;
@@ -277,6 +328,9 @@ public class Combine {
      * @return Class data
      */
     public byte[] toByteArray(int writerFlags) {
+        if (reader != null)
+            return toByteArrayStreaming(writerFlags);
+
         ClassWriter writer = new ClassWriter(writerFlags);
         //target.methods.forEach(method -> method.localVariables.forEach(var -> var.name = var.name.replace(" ", "")));
         target.accept(writer);
@@ -287,6 +341,7 @@ public class Combine {
     /**
      * Compile target class data to byte array and load with system class loader
      * @return Class loaded by the loader
+     * @throws ClassDefinitionException If the class could not be defined
      */
     public Class<?> compile() {
         return compile(ClassLoader.getSystemClassLoader());
@@ -296,40 +351,126 @@ public class Combine {
      * Compile target class data to byte array and load with the given class loader
      * @param loader Loader to use when loading the class
      * @return Class loaded by the loader
+     * @throws ClassDefinitionException If the class could not be defined
      */
     public Class<?> compile(ClassLoader loader) {
-        Method m = null;
-        try {
-            m = ClassLoader.class.getDeclaredMethod("defineClass", byte[].class, int.class, int.class);
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        }
-
-        assert m != null;
-        m.setAccessible(true);
-        //ReflectCompat.setAccessible(m, true);
-
-        byte[] data = toByteArray();
+        return new ClassDefiner(loader).define(toByteArray());
+    }
 
-        try {
-            return (Class<?>) m.invoke(loader, data, 0, data.length);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            e.printStackTrace();
-        }
-        return null;
+    /**
+     * Compile target class data to byte array and define it through the given lookup. The target class has to be in
+     * the same package as the lookup class
+     * @param lookup Lookup to define the class through
+     * @return Class defined by the lookup
+     * @throws ClassDefinitionException If the class could not be defined
+     */
+    public Class<?> compile(MethodHandles.Lookup lookup) {
+        return new ClassDefiner(lookup).define(toByteArray());
     }
 
     public String getTargetName() {
         return target.name;
     }
 
+    /**
+     * Get the target class node. Since the returned node may be modified arbitrarily, the merger stops indexing the
+     * members of the target and looks them up in the node itself from then on
+     * @return Target class node
+     */
     public ClassNode getClassNode() {
+        if (reader != null) {
+            for (MethodNode node : new ArrayList<>(unread.values()))
+                read(node);
+
+            reader = null;
+        }
+
+        if (!exposed) {
+            exposed = true;
+            methodsByName.clear();
+            methodsByKey.clear();
+            fieldsByName.clear();
+        }
+
         return target;
     }
 
+    /**
+     * Compile target class data in streaming mode. Methods which haven't been parsed are visited straight into a
+     * writer sharing the constant pool of the original class, which makes ASM copy them without parsing them
+     * @param writerFlags Flags to pass to the {@link ClassWriter} used to compile the target class
+     * @return Class data
+     */
+    private byte[] toByteArrayStreaming(int writerFlags) {
+        final ClassWriter writer = new ClassWriter(reader, writerFlags);
+
+        final Set<MethodNode> methods = Collections.newSetFromMap(new IdentityHashMap<>());
+        methods.addAll(target.methods);
+
+        reader.accept(new ClassVisitor(ASM_API, writer) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                // Superclass and interfaces may have been grafted
+                super.visit(
+                        target.version,
+                        target.access,
+                        target.name,
+                        target.signature,
+                        target.superName,
+                        target.interfaces.toArray(new String[0])
+                );
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                // Fields are always parsed, so they are written from the target node
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                final MethodNode stub = unread.get(methodKey(name, desc));
+                return stub != null && methods.contains(stub) ?
+                        super.visitMethod(stub.access, name, desc, signature, exceptions) :
+                        null;
+            }
+
+            @Override
+            public void visitEnd() {
+                for (FieldNode node : target.fields)
+                    node.accept(writer);
+
+                for (MethodNode node : target.methods)
+                    if (unread.get(methodKey(node.name, node.desc)) != node)
+                        node.accept(writer);
+
+                super.visitEnd();
+            }
+        }, 0);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Parse the code of a method which hasn't been parsed in streaming mode
+     * @param node Method node to parse the code of
+     * @return The given method node
+     */
+    private MethodNode read(MethodNode node) {
+        if (node != null && reader != null && unread.remove(methodKey(node.name, node.desc), node))
+            reader.accept(new ClassVisitor(ASM_API) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                    return name.equals(node.name) && desc.equals(node.desc) ? node : null;
+                }
+            }, 0);
+
+        return node;
+    }
+
     protected void ensureLoadClassAssertionState() {
         if (!hasDeclaredAssertionState())
-            target.fields.add(new FieldNode(
+            addField(new FieldNode(
                     VAR_ASSERT_FLAGS,
                     VAR_ASSERT_NAME,
                     "Z",
@@ -338,12 +479,13 @@ public class Combine {
             ));
 
         // Check if state is loaded
-        if (target.methods.stream().noneMatch(it -> it.name.equals("<clinit>"))) {
+        final List<MethodNode> initializers = findMethodNodes("<clinit>");
+        if (initializers.isEmpty()) {
             MethodNode mnode = new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
             injectAssertionLoad(mnode, true);
-            target.methods.add(mnode);
+            addMethod(mnode);
         } else {
-            MethodNode clinit = target.methods.stream().filter(it -> it.name.equals("<clinit>")).findAny().get();
+            MethodNode clinit = initializers.get(0);
 
             for (AbstractInsnNode node = clinit.instructions.getFirst(); node != null; node = node.getNext())
                 if (node instanceof FieldInsnNode &&
@@ -406,7 +548,7 @@ public class Combine {
     }
 
     protected boolean hasDeclaredAssertionState() {
-        return target.fields.stream().anyMatch(it -> VAR_ASSERT_NAME.equals(it.name));
+        return findFieldNode(VAR_ASSERT_NAME) != null;
     }
 
     /**
@@ -437,6 +579,9 @@ public class Combine {
                 varNode.desc = graftTypeName;
 
         node.name = source.getMethodTargetName(node);
+
+        // Instructions and frames have been adapted in place
+        FrameState.invalidate(node);
     }
 
     protected static LabelNode findOrMakeEndLabel(InsnList nodes) {
@@ -458,9 +603,13 @@ public class Combine {
     }
 
     protected LabelNode makeEndJumpFrame(InsnList nodes, MethodSignature sig, MethodNode source) {
+        return makeEndJumpFrame(nodes, new DescriptorView(sig.toString()), source);
+    }
+
+    protected LabelNode makeEndJumpFrame(InsnList nodes, DescriptorView sig, MethodNode source) {
         LabelNode endLabel = findOrMakeEndLabel(nodes);
 
-        List<Object> local = makeFrameLocals(sig.getArgs());
+        List<Object> local = makeFrameLocals(sig);
         if (!isStatic(source))
             local.add(0, target.name);
 
@@ -470,7 +619,7 @@ public class Combine {
         return endLabel;
     }
 
-    private void storeAndGotoFromReturn(MethodNode source, InsnList nodes, int storeIndex, MethodSignature sig) {
+    private void storeAndGotoFromReturn(MethodNode source, InsnList nodes, int storeIndex, DescriptorView sig) {
         // The last (injected) GOTO can always be removed
         AbstractInsnNode lastGoto = null;
         int jumpCount = 0;
@@ -523,7 +672,7 @@ public class Combine {
         }
     }
 
-    private void popAndGotoFromReturn(MethodNode source, InsnList nodes, MethodSignature sig) {
+    private void popAndGotoFromReturn(MethodNode source, InsnList nodes, DescriptorView sig) {
         AbstractInsnNode lastGoto = null;
         int jumpCount = 0;
 
@@ -604,6 +753,9 @@ public class Combine {
             // Add variable to locals
             node.localVariables.add(varNode);
         }
+
+        // Scopes and variable indices have been changed in place
+        FrameState.invalidate(node);
     }
 
     protected static void adjustFramesForRetVar(InsnList nodes, int argc) {
@@ -678,19 +830,20 @@ public class Combine {
 
                 InsnList insnList = sourceMethod.instructions;
 
+                final DescriptorView sig = new DescriptorView(sourceMethod.desc);
+
                 // If we already have a final frame, there's no need to add one
                 LabelNode endLabel = hasEndJumpFrame(insnList) ?
                         findOrMakeEndLabel(insnList) :
-                        makeEndJumpFrame(insnList, new MethodSignature(sourceMethod.desc), sourceMethod);
+                        makeEndJumpFrame(insnList, sig, sourceMethod);
 
                 AbstractInsnNode jumpInsn = new JumpInsnNode(Opcodes.GOTO, endLabel);
                 insnList.set(node, jumpInsn);
 
-                MethodSignature sig = new MethodSignature(sourceMethod.desc);
                 final Class<?>[] ignoredNodes = {LineNumberNode.class, LabelNode.class, FrameNode.class};
                 AbstractInsnNode afterJump = getNextNode(jumpInsn, ignoredNodes);
 
-                if (!sig.getRet().isVoidType()) {
+                if (!sig.isVoid()) {
                     // Now we want to remove extraneous (unreachable) return instructions
                     afterJump = getNextNode(afterJump, ignoredNodes);
 
@@ -747,6 +900,44 @@ public class Combine {
         }
     }
 
+    /**
+     * Create the stack map frame types of the arguments of a method
+     * @param sig Descriptor of the method
+     * @return Frame types of the arguments, excluding any implicit "this" argument
+     */
+    protected static List<Object> makeFrameLocals(DescriptorView sig) {
+        ArrayList<Object> local = new ArrayList<>(sig.getArgCount());
+
+        for (int i = 0; i < sig.getArgCount(); ++i)
+            switch (sig.getArgSort(i)) {
+                case 'B':
+                case 'Z':
+                case 'C':
+                case 'S':
+                case 'I':
+                    local.add(Opcodes.INTEGER);
+                    break;
+
+                case 'F':
+                    local.add(Opcodes.FLOAT);
+                    break;
+
+                case 'J':
+                    local.add(Opcodes.LONG);
+                    break;
+
+                case 'D':
+                    local.add(Opcodes.DOUBLE);
+                    break;
+
+                default:
+                    local.add(sig.getArgInternalName(i));
+                    break;
+            }
+
+        return local;
+    }
+
     protected static List<Object> makeFrameLocals(TypeSignature... sigs) {
         ArrayList<Object> local = new ArrayList<>();
 
@@ -797,9 +988,8 @@ public class Combine {
             // The target has to be injected into the target
             Handle handle = (Handle) insn.bsmArgs[1];
 
-            for (MethodNode mNode : target.methods)
-                if (mNode.name.equals(handle.getName()) && mNode.desc.equals(handle.getDesc()))
-                    return; // The target has already been injected
+            if (findMethodNode(handle.getName(), handle.getDesc()) != null)
+                return; // The target has already been injected
 
             MethodNode inject = source.getMethodNode(handle.getName(), handle.getDesc());
             if (inject == null)
@@ -831,10 +1021,10 @@ public class Combine {
      */
     protected String adaptMethodSignature(String desc, GraftSource source) {
         TypeSignature graftSig = new TypeSignature("L"+source.getTypeName()+";");
-        MethodSignature sig = new MethodSignature(desc);
+        MethodSignature sig = MethodSignature.of(desc);
         for (int i = 0; i < sig.getArgCount(); ++i)
             if (sig.getArg(i).getArrayAtomType().equals(graftSig))
-                sig.setArg(
+                sig = sig.withArg(
                         i,
                         new TypeSignature(
                                 "L"+target.name+";",
@@ -844,7 +1034,7 @@ public class Combine {
                 );
 
         if (sig.getRet().getArrayAtomType().equals(graftSig))
-            sig.setRet(new TypeSignature(
+            sig = sig.withRet(new TypeSignature(
                     "L"+target.name+";",
                     sig.getRet().getArrayDepth(),
                     false
@@ -896,11 +1086,127 @@ public class Combine {
      * @return A matching {@link MethodNode} if one exists, else null
      */
     protected MethodNode findMethodNode(String name, MethodSignature desc) {
-        return target.methods
-                .stream()
-                .filter(it -> it.name.equals(name) && new MethodSignature(it.desc).equals(desc))
-                .findFirst()
-                .orElse(null);
+        return findMethodNode(name, desc.toString());
+    }
+
+    /**
+     * Find a method node in the targeted class by name and descriptor
+     * @param name Name of the method node to find
+     * @param desc Descriptor of the method node to find
+     * @return A matching {@link MethodNode} if one exists, else null
+     */
+    protected MethodNode findMethodNode(String name, String desc) {
+        if (exposed) {
+            for (MethodNode node : target.methods)
+                if (node.name.equals(name) && node.desc.equals(desc))
+                    return node;
+
+            return null;
+        }
+
+        return read(methodsByKey.get(methodKey(name, desc)));
+    }
+
+    /**
+     * Find all overloads of a method in the targeted class
+     * @param name Name of the method nodes to find
+     * @return All method nodes with the given name, in declaration order
+     */
+    protected List<MethodNode> findMethodNodes(String name) {
+        if (exposed) {
+            final ArrayList<MethodNode> overloads = new ArrayList<>();
+            for (MethodNode node : target.methods)
+                if (node.name.equals(name))
+                    overloads.add(node);
+
+            return overloads;
+        }
+
+        final List<MethodNode> nodes = methodsByName.getOrDefault(name, Collections.emptyList());
+        for (MethodNode node : nodes)
+            read(node);
+
+        return nodes;
+    }
+
+    /**
+     * Find a field node in the targeted class by name
+     * @param name Name of the field node to find
+     * @return A matching {@link FieldNode} if one exists, else null
+     */
+    protected FieldNode findFieldNode(String name) {
+        if (exposed) {
+            for (FieldNode node : target.fields)
+                if (node.name.equals(name))
+                    return node;
+
+            return null;
+        }
+
+        return fieldsByName.get(name);
+    }
+
+    private void addMethod(MethodNode node) {
+        target.methods.add(node);
+        if (!exposed)
+            indexMethod(node);
+    }
+
+    private void removeMethod(MethodNode node) {
+        if (!target.methods.remove(node) || exposed)
+            return;
+
+        List<MethodNode> overloads = methodsByName.get(node.name);
+        if (overloads != null) {
+            overloads.remove(node);
+            if (overloads.isEmpty())
+                methodsByName.remove(node.name);
+        }
+
+        methodsByKey.remove(methodKey(node.name, node.desc), node);
+    }
+
+    private void addField(FieldNode node) {
+        target.fields.add(node);
+        if (!exposed)
+            fieldsByName.putIfAbsent(node.name, node);
+    }
+
+    private void removeField(FieldNode node) {
+        if (target.fields.remove(node) && !exposed)
+            fieldsByName.remove(node.name, node);
+    }
+
+    private void indexMethod(MethodNode node) {
+        methodsByName.computeIfAbsent(node.name, k -> new ArrayList<>(1)).add(node);
+        methodsByKey.putIfAbsent(methodKey(node.name, node.desc), node);
+    }
+
+    private void indexMembers() {
+        methodsByName.clear();
+        methodsByKey.clear();
+        fieldsByName.clear();
+
+        for (MethodNode node : target.methods)
+            indexMethod(node);
+
+        for (FieldNode node : target.fields)
+            fieldsByName.putIfAbsent(node.name, node);
+    }
+
+    private static String methodKey(String name, String desc) {
+        return name.concat(desc);
+    }
+
+    private static int latestAsmApi() {
+        for (String api : new String[]{ "ASM9", "ASM8", "ASM7", "ASM6" })
+            try {
+                return Opcodes.class.getField(api).getInt(null);
+            } catch (NoSuchFieldException | IllegalAccessException ignored) {
+                // Not supported by the bundled ASM version
+            }
+
+        return Opcodes.ASM5;
     }
 
     /**
@@ -986,19 +1292,12 @@ public class Combine {
         boolean acceptRet = annot.getEntry("acceptOriginalReturn");
 
         String sig = adaptMethodSignature(source.getMethodTarget(inject), source);
-        final MethodSignature mSig = new MethodSignature(sig);
+        final MethodSignature mSig = MethodSignature.of(sig);
 
         final String targetName = source.getMethodTargetName(inject);
 
-        // Collect possible method candidates by name
-        List<MethodNode> candidates = this.target
-                .methods
-                .stream()
-                .filter(it -> it.name.equals(targetName))
-                .collect(Collectors.toList());
-
         // No candidates match the base criteria
-        if (candidates.isEmpty())
+        if (findMethodNodes(targetName).isEmpty())
             throw new MethodNodeResolutionException(String.format(
                     "Cannot find and target candidates for method %s%s",
                     inject.name,
@@ -1016,12 +1315,10 @@ public class Combine {
             sig = mSig.withoutLastArg().toString();
         }
 
-        final String findSig = sig;
-        final List<MethodNode> cand = candidates;
-        candidates = candidates.stream().filter(it -> it.desc.equals(findSig)).collect(Collectors.toList());
+        final MethodNode candidate = findMethodNode(targetName, sig);
 
         // We have no candidates
-        if (candidates.isEmpty()) {
+        if (candidate == null) {
             // If no candidates were found for the explicitly declared signature,
             // check if accepting original return value was implied
             if (!acceptRet &&
@@ -1029,12 +1326,11 @@ public class Combine {
                     mSig.getArgCount() > 0 &&
                     mSig.getRet().equals(mSig.getArg(mSig.getArgCount() - 1))) {
                 // Search for method without the implied return value argument
-                final String fSig = mSig.withoutLastArg().toString();
-                candidates = cand.stream().filter(it -> it.desc.equals(fSig)).collect(Collectors.toList());
+                final MethodNode implied = findMethodNode(targetName, mSig.withoutLastArg().toString());
 
                 // Do we have a match?
-                if (candidates.size() == 1)
-                    return new MethodResolution(candidates.get(0), true);
+                if (implied != null)
+                    return new MethodResolution(implied, true);
             }
 
             throw new MethodNodeResolutionException(String.format(
@@ -1046,7 +1342,7 @@ public class Combine {
 
         // If we have a candidate, it will have a specific name and signature
         // Therefore there cannot be more than one candidate by JVM convention
-        return new MethodResolution(candidates.get(0), acceptRet && allowAcceptRet);
+        return new MethodResolution(candidate, acceptRet && allowAcceptRet);
     }
 
     protected static boolean isStatic(MethodNode node) {
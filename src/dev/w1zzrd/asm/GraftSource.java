@@ -11,78 +11,178 @@ import java.util.stream.Collectors;
 
 public final class GraftSource {
     private final String typeName;
-    private final HashMap<MethodNode, List<AsmAnnotation<?>>> methodAnnotations;
-    private final HashMap<FieldNode, List<AsmAnnotation<?>>> fieldAnnotations;
+    private final LinkedHashMap<MethodNode, List<AsmAnnotation<?>>> methodAnnotations;
+    private final LinkedHashMap<FieldNode, List<AsmAnnotation<?>>> fieldAnnotations;
     private final ClassNode source;
 
+    // Lookup indices. These are computed once, since graft sources are consulted repeatedly while weaving
+    private final LinkedHashMap<MethodNode, AsmAnnotation<Inject>> methodDirectives;
+    private final LinkedHashMap<FieldNode, AsmAnnotation<Inject>> fieldDirectives;
+    private final HashMap<String, MethodNode> methodsByKey;
+    private final HashMap<String, MethodNode> injectedByTarget;
+    private final HashMap<MethodNode, MethodTarget> methodTargets;
+    private final List<MethodNode> injectMethods;
+    private final List<FieldNode> injectFields;
+
     public GraftSource(ClassNode source) {
         this.source = source;
         this.typeName = source.name;
 
-        methodAnnotations = new HashMap<>();
+        // Linked maps retain declaration order, which keeps injection order deterministic for equal priorities
+        methodAnnotations = new LinkedHashMap<>();
+        methodDirectives = new LinkedHashMap<>();
         for (MethodNode mNode : source.methods)
         {
             List<AsmAnnotation<?>> annotations = parseAnnotations(mNode.visibleAnnotations);
-            if (hasNoInjectionDirective(annotations))
+            AsmAnnotation<Inject> directive = getInjectionDirective(annotations);
+            if (directive == null)
                 continue;
 
             methodAnnotations.put(mNode, annotations);
+            methodDirectives.put(mNode, directive);
         }
 
-        fieldAnnotations = new HashMap<>();
+        fieldAnnotations = new LinkedHashMap<>();
+        fieldDirectives = new LinkedHashMap<>();
         for (FieldNode fNode : source.fields)
         {
             List<AsmAnnotation<?>> annotations = parseAnnotations(fNode.visibleAnnotations);
-            if (hasNoInjectionDirective(annotations))
+            AsmAnnotation<Inject> directive = getInjectionDirective(annotations);
+            if (directive == null)
                 continue;
 
             fieldAnnotations.put(fNode, annotations);
+            fieldDirectives.put(fNode, directive);
+        }
+
+        methodsByKey = new HashMap<>(source.methods.size() * 2);
+        methodTargets = new HashMap<>(source.methods.size() * 2);
+        for (MethodNode mNode : source.methods) {
+            // First declaration wins, as with a linear search
+            methodsByKey.putIfAbsent(methodKey(mNode.name, mNode.desc), mNode);
+            methodTargets.put(mNode, computeMethodTarget(mNode));
         }
+
+        // Directives are in declaration order, so the first declared injection of a target wins
+        injectedByTarget = new HashMap<>(methodAnnotations.size() * 2);
+        for (Map.Entry<MethodNode, AsmAnnotation<Inject>> entry : methodDirectives.entrySet()) {
+            final MethodNode mNode = entry.getKey();
+
+            final String targetSig;
+            try {
+                targetSig = MethodSignature.of(entry.getValue().getEntryOr("target", mNode.desc)).toString();
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Target declares a name but no signature, so it can't be looked up by signature
+                continue;
+            }
+
+            injectedByTarget.putIfAbsent(methodKey(mNode.name, targetSig), mNode);
+        }
+
+        injectMethods = Collections.unmodifiableList(
+                methodAnnotations
+                        .keySet()
+                        .stream()
+                        .sorted(Comparator.comparingInt(a -> getMethodInjectAnnotation(a).materialize().priority()))
+                        .collect(Collectors.toList())
+        );
+
+        injectFields = Collections.unmodifiableList(
+                fieldAnnotations
+                        .keySet()
+                        .stream()
+                        .sorted(Comparator.comparingInt(a -> getFieldInjectAnnotation(a).materialize().priority()))
+                        .collect(Collectors.toList())
+        );
     }
 
-    public MethodNode getMethodNode(String name, String desc) {
-        for (MethodNode node : source.methods)
-            if (node.name.equals(name) && node.desc.equals(desc))
-                return node;
+    /**
+     * Create a graft source for a copy of the class node of another graft source, reusing its parsed annotations and
+     * indices rather than recomputing them
+     * @param prototype Graft source to copy the parsed state of
+     * @param copy Copy of the class node of the prototype, declaring corresponding members in the same order
+     */
+    GraftSource(GraftSource prototype, ClassNode copy) {
+        if (copy.methods.size() != prototype.source.methods.size() || copy.fields.size() != prototype.source.fields.size())
+            throw new IllegalArgumentException(String.format("Class node is not a copy of graft source %s", prototype.typeName));
 
-        return null;
+        this.source = copy;
+        this.typeName = copy.name;
+
+        final HashMap<MethodNode, MethodNode> methods = new HashMap<>(copy.methods.size() * 2);
+        for (int i = 0; i < copy.methods.size(); ++i)
+            methods.put(prototype.source.methods.get(i), copy.methods.get(i));
+
+        final HashMap<FieldNode, FieldNode> fields = new HashMap<>(copy.fields.size() * 2);
+        for (int i = 0; i < copy.fields.size(); ++i)
+            fields.put(prototype.source.fields.get(i), copy.fields.get(i));
+
+        methodAnnotations = new LinkedHashMap<>();
+        prototype.methodAnnotations.forEach((k, v) -> methodAnnotations.put(methods.get(k), v));
+
+        fieldAnnotations = new LinkedHashMap<>();
+        prototype.fieldAnnotations.forEach((k, v) -> fieldAnnotations.put(fields.get(k), v));
+
+        methodDirectives = new LinkedHashMap<>();
+        prototype.methodDirectives.forEach((k, v) -> methodDirectives.put(methods.get(k), v));
+
+        fieldDirectives = new LinkedHashMap<>();
+        prototype.fieldDirectives.forEach((k, v) -> fieldDirectives.put(fields.get(k), v));
+
+        methodsByKey = new HashMap<>();
+        prototype.methodsByKey.forEach((k, v) -> methodsByKey.put(k, methods.get(v)));
+
+        injectedByTarget = new HashMap<>();
+        prototype.injectedByTarget.forEach((k, v) -> injectedByTarget.put(k, methods.get(v)));
+
+        // Resolved targets are immutable, so they can be shared
+        methodTargets = new HashMap<>();
+        prototype.methodTargets.forEach((k, v) -> methodTargets.put(methods.get(k), v));
+
+        injectMethods = Collections.unmodifiableList(
+                prototype.injectMethods.stream().map(methods::get).collect(Collectors.toList())
+        );
+
+        injectFields = Collections.unmodifiableList(
+                prototype.injectFields.stream().map(fields::get).collect(Collectors.toList())
+        );
+    }
+
+    public MethodNode getMethodNode(String name, String desc) {
+        return methodsByKey.get(methodKey(name, desc));
     }
 
     public String getTypeName() {
         return typeName;
     }
 
-    public String getMethodTarget(MethodNode node) {
-        if (methodAnnotations.containsKey(node)) {
-            String target = getInjectionDirective(methodAnnotations.get(node)).getEntry("target");
-            if (target != null && target.length() != 0) {
-                if (target.indexOf('(') != -1)
-                    return target;
-                else
-                    return target + node.desc;
-            }
-        }
+    /**
+     * Get the class node this graft source was created from
+     * @return Graft source class node
+     */
+    ClassNode getClassNode() {
+        return source;
+    }
 
-        return node.name + node.desc;
+    public String getMethodTarget(MethodNode node) {
+        return getTarget(node).target;
     }
 
     public String getMethodTargetName(MethodNode node) {
-        String target = getMethodTarget(node);
-
-        if (target.indexOf("(") > 0)
-            return target.substring(0, target.indexOf('('));
-
-        return node.name;
+        return getTarget(node).name;
     }
 
+    /**
+     * Get the signature of the method targeted by an injected method
+     * @param node Injected method
+     * @param acceptOriginalReturn Whether the injected method accepts the original return value as its last argument.
+     *                             If the target doesn't declare a signature, said argument is not part of the target
+     *                             signature
+     * @return Signature of the targeted method
+     */
     public MethodSignature getMethodTargetSignature(MethodNode node, boolean acceptOriginalReturn) {
-        String target = getMethodTarget(node);
-
-        if (target.contains("("))
-            return new MethodSignature(target.substring(target.indexOf('(')));
-
-        MethodSignature sig = new MethodSignature(node.desc);
-        return acceptOriginalReturn ? sig.withoutLastArg() : sig;
+        final MethodTarget target = getTarget(node);
+        return acceptOriginalReturn && !target.declaresSignature ? target.signature.withoutLastArg() : target.signature;
     }
 
     public boolean isMethodInjected(String name, String desc) {
@@ -90,22 +190,7 @@ public final class GraftSource {
     }
 
     public MethodNode getInjectedMethod(String name, String desc) {
-        return methodAnnotations
-                .entrySet()
-                .stream()
-                .filter(kv ->
-                        {
-                            if (!kv.getKey().name.equals(name)) return false;
-                            assert getInjectionDirective(kv.getValue()) != null;
-                            return new MethodSignature(getInjectionDirective(kv.getValue())
-                                    .getEntryOr("target", kv.getKey().desc))
-                                    .toString()
-                                    .equals(desc);
-                        }
-                )
-                .map(Map.Entry::getKey)
-                .findFirst()
-                .orElse(null);
+        return injectedByTarget.get(methodKey(name, desc));
     }
 
     public String getMethodTargetName(String name, String desc) {
@@ -115,7 +200,7 @@ public final class GraftSource {
 
     public String getFieldTargetName(FieldNode node) {
         if (fieldAnnotations.containsKey(node)) {
-            String target = getInjectionDirective(fieldAnnotations.get(node)).getEntry("target");
+            String target = fieldDirectives.get(node).materialize().target();
             if (target != null && target.length() != 0)
                 return target;
         }
@@ -132,31 +217,53 @@ public final class GraftSource {
     }
 
     public List<MethodNode> getInjectMethods() {
-        return methodAnnotations
-                .keySet()
-                .stream()
-                .sorted(Comparator.comparingInt(a -> getMethodInjectAnnotation(a).getEntry("priority")))
-                .collect(Collectors.toList());
+        return injectMethods;
     }
 
     public List<FieldNode> getInjectFields() {
-        return fieldAnnotations
-                .keySet()
-                .stream()
-                .sorted(Comparator.comparingInt(a -> getFieldInjectAnnotation(a).getEntry("priority")))
-                .collect(Collectors.toList());
+        return injectFields;
     }
 
     public AsmAnnotation<Inject> getMethodInjectAnnotation(MethodNode node) {
-        return getInjectionDirective(methodAnnotations.get(node));
+        return methodDirectives.get(node);
     }
 
     public AsmAnnotation<Inject> getFieldInjectAnnotation(FieldNode node) {
-        return getInjectionDirective(fieldAnnotations.get(node));
+        return fieldDirectives.get(node);
     }
 
-    private static boolean hasNoInjectionDirective(List<AsmAnnotation<?>> annotations) {
-        return getInjectionDirective(annotations) == null;
+    private MethodTarget getTarget(MethodNode node) {
+        final MethodTarget target = methodTargets.get(node);
+
+        // Nodes which aren't declared by the graft source aren't indexed
+        return target == null ? computeMethodTarget(node) : target;
+    }
+
+    private MethodTarget computeMethodTarget(MethodNode node) {
+        String target = node.name + node.desc;
+        boolean declaresSignature = false;
+
+        if (methodDirectives.containsKey(node)) {
+            String declared = methodDirectives.get(node).materialize().target();
+            if (declared != null && declared.length() != 0) {
+                declaresSignature = declared.indexOf('(') != -1;
+                if (declaresSignature)
+                    target = declared;
+                else
+                    target = declared + node.desc;
+            }
+        }
+
+        return new MethodTarget(
+                target,
+                target.indexOf('(') > 0 ? target.substring(0, target.indexOf('(')) : node.name,
+                MethodSignature.of(target.substring(target.indexOf('('))),
+                declaresSignature
+        );
+    }
+
+    private static String methodKey(String name, String desc) {
+        return name.concat(desc);
     }
 
     private static AsmAnnotation<Inject> getInjectionDirective(List<AsmAnnotation<?>> annotations) {
@@ -170,4 +277,21 @@ public final class GraftSource {
     private static List<AsmAnnotation<?>> parseAnnotations(List<AnnotationNode> annotations) {
         return annotations == null ? new ArrayList<>() : annotations.stream().map(AsmAnnotation::getAnnotation).collect(Collectors.toList());
     }
+
+    /**
+     * Precomputed injection target of a method node
+     */
+    private static final class MethodTarget {
+        private final String target;
+        private final String name;
+        private final MethodSignature signature;
+        private final boolean declaresSignature;
+
+        private MethodTarget(String target, String name, MethodSignature signature, boolean declaresSignature) {
+            this.target = target;
+            this.name = name;
+            this.signature = signature;
+            this.declaresSignature = declaresSignature;
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package dev.w1zzrd.asm;
+
+import jdk.internal.org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable template of a {@link GraftSource}. Since {@link Combine} consumes the method and field nodes of the graft
+ * sources it injects, a graft source can only ever be applied to a single target. A template instead hands out fresh
+ * graft sources backed by clones of its members, such that one graft class can be applied to any number of targets
+ * without re-reading or re-parsing it. Parsed annotations and member indices are shared between all instances.
+ * Templates are safe to instantiate concurrently.
+ */
+public final class GraftTemplate {
+    private final GraftSource prototype;
+
+    /**
+     * Create a template from a graft source. The template keeps a private copy of the graft source, so the given graft
+     * source may still be injected afterwards
+     * @param source Graft source to create a template of
+     */
+    public GraftTemplate(GraftSource source) {
+        this.prototype = new GraftSource(source, copyClass(source.getClassNode()));
+    }
+
+    public String getTypeName() {
+        return prototype.getTypeName();
+    }
+
+    /**
+     * Create a new graft source from this template. The returned graft source may be mutated freely
+     * @return A graft source backed by a fresh copy of the templated class members
+     */
+    public GraftSource instantiate() {
+        return new GraftSource(prototype, copyClass(prototype.getClassNode()));
+    }
+
+    /**
+     * Inject a new instance of this template into the given target, exactly as the graft source would be injected by
+     * {@link Injector}: methods and fields are injected in order of their declared priority, and interfaces are added
+     * to the target if the graft source declares {@link InjectClass#injectInterfaces()}
+     * @param merger Target to inject into
+     * @return The graft source instance which was injected
+     */
+    public GraftSource applyTo(Combine merger) {
+        final GraftSource source = instantiate();
+        Injector.inject(merger, Collections.singletonList(source));
+        return source;
+    }
+
+
+    /**
+     * Copy the parts of a class node which are used when grafting. Members are copied in declaration order
+     * @param node Class node to copy
+     * @return Copy of the class node
+     */
+    private static ClassNode copyClass(ClassNode node) {
+        final ClassNode copy = new ClassNode();
+        copy.version = node.version;
+        copy.access = node.access;
+        copy.name = node.name;
+        copy.signature = node.signature;
+        copy.superName = node.superName;
+        copy.interfaces = new ArrayList<>(node.interfaces);
+        copy.sourceFile = node.sourceFile;
+        copy.visibleAnnotations = copyList(node.visibleAnnotations);
+        copy.invisibleAnnotations = copyList(node.invisibleAnnotations);
+
+        for (MethodNode mNode : node.methods)
+            copy.methods.add(copyMethod(mNode));
+
+        for (FieldNode fNode : node.fields)
+            copy.fields.add(copyField(fNode));
+
+        return copy;
+    }
+
+    private static MethodNode copyMethod(MethodNode node) {
+        final MethodNode copy = new MethodNode(
+                node.access,
+                node.name,
+                node.desc,
+                node.signature,
+                node.exceptions == null ? null : node.exceptions.toArray(new String[0])
+        );
+
+        // Labels have to be cloned up front, since jumps may target labels further down the instruction list
+        final Map<LabelNode, LabelNode> labels = new HashMap<>();
+        for (AbstractInsnNode insn = node.instructions.getFirst(); insn != null; insn = insn.getNext())
+            if (insn instanceof LabelNode)
+                labels.put((LabelNode) insn, new LabelNode());
+
+        for (AbstractInsnNode insn = node.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            final AbstractInsnNode clone = insn.clone(labels);
+
+            // Bootstrap arguments are rewritten when grafting lambdas, so they mustn't be shared
+            if (clone instanceof InvokeDynamicInsnNode)
+                ((InvokeDynamicInsnNode) clone).bsmArgs = Arrays.copyOf(
+                        ((InvokeDynamicInsnNode) clone).bsmArgs,
+                        ((InvokeDynamicInsnNode) clone).bsmArgs.length
+                );
+
+            copy.instructions.add(clone);
+        }
+
+        if (node.tryCatchBlocks != null)
+            for (TryCatchBlockNode block : node.tryCatchBlocks) {
+                final TryCatchBlockNode blockCopy = new TryCatchBlockNode(
+                        labels.get(block.start),
+                        labels.get(block.end),
+                        labels.get(block.handler),
+                        block.type
+                );
+                blockCopy.visibleTypeAnnotations = copyList(block.visibleTypeAnnotations);
+                blockCopy.invisibleTypeAnnotations = copyList(block.invisibleTypeAnnotations);
+                copy.tryCatchBlocks.add(blockCopy);
+            }
+
+        if (node.localVariables != null) {
+            copy.localVariables = new ArrayList<>(node.localVariables.size());
+            for (LocalVariableNode var : node.localVariables)
+                copy.localVariables.add(new LocalVariableNode(
+                        var.name,
+                        var.desc,
+                        var.signature,
+                        labels.get(var.start),
+                        labels.get(var.end),
+                        var.index
+                ));
+        }
+
+        copy.visibleLocalVariableAnnotations = copyLocalVariableAnnotations(node.visibleLocalVariableAnnotations, labels);
+        copy.invisibleLocalVariableAnnotations = copyLocalVariableAnnotations(node.invisibleLocalVariableAnnotations, labels);
+
+        // Annotations and attributes are never modified when grafting
+        copy.parameters = copyList(node.parameters);
+        copy.visibleAnnotations = copyList(node.visibleAnnotations);
+        copy.invisibleAnnotations = copyList(node.invisibleAnnotations);
+        copy.visibleTypeAnnotations = copyList(node.visibleTypeAnnotations);
+        copy.invisibleTypeAnnotations = copyList(node.invisibleTypeAnnotations);
+        copy.visibleParameterAnnotations = copyArray(node.visibleParameterAnnotations);
+        copy.invisibleParameterAnnotations = copyArray(node.invisibleParameterAnnotations);
+        copy.annotationDefault = node.annotationDefault;
+        copy.attrs = copyList(node.attrs);
+
+        copy.maxStack = node.maxStack;
+        copy.maxLocals = node.maxLocals;
+
+        return copy;
+    }
+
+    private static FieldNode copyField(FieldNode node) {
+        final FieldNode copy = new FieldNode(node.access, node.name, node.desc, node.signature, node.value);
+        copy.visibleAnnotations = copyList(node.visibleAnnotations);
+        copy.invisibleAnnotations = copyList(node.invisibleAnnotations);
+        copy.visibleTypeAnnotations = copyList(node.visibleTypeAnnotations);
+        copy.invisibleTypeAnnotations = copyList(node.invisibleTypeAnnotations);
+        copy.attrs = copyList(node.attrs);
+        return copy;
+    }
+
+    private static List<LocalVariableAnnotationNode> copyLocalVariableAnnotations(
+            List<LocalVariableAnnotationNode> annotations,
+            Map<LabelNode, LabelNode> labels
+    ) {
+        if (annotations == null)
+            return null;
+
+        final ArrayList<LocalVariableAnnotationNode> copy = new ArrayList<>(annotations.size());
+        for (LocalVariableAnnotationNode annotation : annotations) {
+            final LocalVariableAnnotationNode annotationCopy = new LocalVariableAnnotationNode(
+                    annotation.typeRef,
+                    annotation.typePath,
+                    annotation.start.stream().map(labels::get).toArray(LabelNode[]::new),
+                    annotation.end.stream().map(labels::get).toArray(LabelNode[]::new),
+                    annotation.index.stream().mapToInt(Integer::intValue).toArray(),
+                    annotation.desc
+            );
+            annotationCopy.values = copyList(annotation.values);
+            copy.add(annotationCopy);
+        }
+
+        return copy;
+    }
+
+    private static <T> List<T> copyList(List<T> list) {
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    private static <T> List<T>[] copyArray(List<T>[] lists) {
+        if (lists == null)
+            return null;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final List<T>[] copy = new List[lists.length];
+        for (int i = 0; i < lists.length; ++i)
+            copy[i] = copyList(lists[i]);
+
+        return copy;
+    }
+}
@@ -0,0 +1,102 @@
+package dev.w1zzrd.asm;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor recording every {@link InjectClass}-annotated class and its target in an
+ * {@link InjectionIndex} resource, so that {@link Injector} never has to scan the classpath for graft sources
+ */
+@SupportedAnnotationTypes("dev.w1zzrd.asm.InjectClass")
+public class InjectClassProcessor extends AbstractProcessor {
+    private static final String INJECT_CLASS_NAME = InjectClass.class.getName().replace('.', '/');
+
+    private final TreeMap<String, Set<String>> entries = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(InjectClass.class))
+            if (element instanceof TypeElement)
+                entries.computeIfAbsent(getTargetName((TypeElement) element), k -> new TreeSet<>())
+                        .add(getInternalName((TypeElement) element));
+
+        if (roundEnv.processingOver() && !entries.isEmpty())
+            writeIndex();
+
+        return false;
+    }
+
+    private void writeIndex() {
+        // Merge with the existing index so incremental compilation does not drop entries for untouched sources
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(
+                    StandardLocation.CLASS_OUTPUT,
+                    "",
+                    InjectionIndex.INDEX_RESOURCE
+            );
+
+            try (Reader reader = existing.openReader(true)) {
+                InjectionIndex.read(reader, entries);
+            }
+        } catch (IOException ignored) {
+            // No previous index
+        }
+
+        try {
+            FileObject index = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT,
+                    "",
+                    InjectionIndex.INDEX_RESOURCE
+            );
+
+            try (Writer writer = index.openWriter()) {
+                InjectionIndex.write(writer, entries);
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(
+                    Diagnostic.Kind.ERROR,
+                    String.format("Could not write %s: %s", InjectionIndex.INDEX_RESOURCE, e.getMessage())
+            );
+        }
+    }
+
+    private String getTargetName(TypeElement element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!getInternalName((TypeElement) mirror.getAnnotationType().asElement()).equals(INJECT_CLASS_NAME))
+                continue;
+
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : mirror.getElementValues().entrySet())
+                if (value.getKey().getSimpleName().contentEquals("value"))
+                    return getInternalName((TypeElement) ((DeclaredType) value.getValue().getValue()).asElement());
+        }
+
+        throw new IllegalStateException(String.format("No target declared for %s", element));
+    }
+
+    private String getInternalName(TypeElement element) {
+        return processingEnv.getElementUtils().getBinaryName(element).toString().replace('.', '/');
+    }
+}
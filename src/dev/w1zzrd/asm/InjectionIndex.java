@@ -0,0 +1,442 @@
+package dev.w1zzrd.asm;
+
+import jdk.internal.org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Index of graft sources (classes annotated with {@link InjectClass}) keyed by the class they target. The index is
+ * generated at compile-time by {@link InjectClassProcessor} and stored in {@value #INDEX_RESOURCE}, so graft sources
+ * can be located without scanning the classpath.<br>
+ * <br>
+ * The index of a class loader merges the index resources of all classpath roots (directories and archives, including
+ * archives nested in other archives) visible to it. Roots without an index resource are scanned once, when the index
+ * is built, so looking up the graft sources of a target never touches the filesystem. Indices are cached per loader
+ * (see {@link #forLoader(ClassLoader)}), so graft sources added to the classpath after the index of a loader was built
+ * are only found once the index has been invalidated (see {@link #invalidate(ClassLoader)}).<br>
+ * <br>
+ * Index format: one entry per line, consisting of the internal name of the target class followed by the internal
+ * name of the graft source class, separated by whitespace. Lines starting with '#' are ignored.
+ */
+public final class InjectionIndex {
+    /**
+     * Resource name of generated index files
+     */
+    public static final String INDEX_RESOURCE = "META-INF/beethoven/injections.idx";
+
+    private static final Map<ClassLoader, InjectionIndex> loaded = new WeakHashMap<>();
+
+    private final Map<String, List<String>> sourcesByTarget;
+    private final Map<String, URL> locations;
+
+    private InjectionIndex(Map<String, List<String>> sourcesByTarget, Map<String, URL> locations) {
+        this.sourcesByTarget = sourcesByTarget;
+        this.locations = locations;
+    }
+
+    /**
+     * Get the merged index of all classpath roots visible to the given loader. Indices are only built once per loader
+     * @param loader Loader to build the index for
+     * @return Merged index (empty if no graft sources exist)
+     * @throws IOException If a classpath root cannot be read
+     */
+    public static InjectionIndex forLoader(ClassLoader loader) throws IOException {
+        synchronized (loaded) {
+            InjectionIndex index = loaded.get(loader);
+            if (index != null)
+                return index;
+        }
+
+        // Built outside the lock, since scanning may take a while. Racing builds yield equivalent indices
+        final InjectionIndex index = load(loader);
+        synchronized (loaded) {
+            return loaded.computeIfAbsent(loader, k -> index);
+        }
+    }
+
+    /**
+     * Discard the index previously built for a given loader, such that it is rebuilt the next time it is requested
+     * @param loader Loader to discard the index for
+     */
+    public static void invalidate(ClassLoader loader) {
+        synchronized (loaded) {
+            loaded.remove(loader);
+        }
+    }
+
+    /**
+     * Build the merged index of all classpath roots visible to the given loader. Roots containing an index resource
+     * are only searched for the indexed classes, while all other roots are scanned. If several roots contain a graft
+     * source with the same name, the first one (in classpath order) is indexed
+     * @param loader Loader to build the index for
+     * @return Merged index (empty if no graft sources exist)
+     * @throws IOException If a classpath root cannot be read
+     */
+    public static InjectionIndex load(ClassLoader loader) throws IOException {
+        final ArrayList<Locator> locators = new ArrayList<>();
+        final ArrayList<ArchiveReader> archives = new ArrayList<>();
+        final HashSet<File> roots = new HashSet<>();
+
+        try {
+            Enumeration<URL> resources = loader.getResources("");
+            while (resources.hasMoreElements()) {
+                final URL resource = resources.nextElement();
+                if ("file".equals(resource.getProtocol())) {
+                    final File root = new File(URLDecoder.decode(
+                            resource.getFile(),
+                            StandardCharsets.UTF_8.name())
+                    ).getAbsoluteFile();
+
+                    roots.add(root);
+                    collectDirectory(root.toPath(), locators);
+                }
+            }
+
+            for (File archive : getClasspathArchives(loader)) {
+                final ArchiveReader reader = ArchiveReader.open(archive);
+                archives.add(reader);
+                roots.add(archive);
+                collectArchive("jar:" + archive.toURI(), reader, locators, archives);
+            }
+
+            // Indices in roots which the loader doesn't expose are resolved through the loader itself
+            Enumeration<URL> indices = loader.getResources(INDEX_RESOURCE);
+            while (indices.hasMoreElements()) {
+                final URL index = indices.nextElement();
+                if (roots.contains(getResourceRoot(index, INDEX_RESOURCE)))
+                    continue;
+
+                for (Map.Entry<String, Set<String>> entry : readIndex(Loader.getClassBytes(index)).entrySet())
+                    for (String source : entry.getValue()) {
+                        final URL url = loader.getResource(source + ".class");
+
+                        // Index may be stale
+                        if (url != null)
+                            locators.add(indexed(entry.getKey(), source, url));
+                    }
+            }
+
+            return build(locators);
+        } finally {
+            for (ArchiveReader archive : archives)
+                archive.close();
+        }
+    }
+
+    /**
+     * Get all indexed graft sources for a given target
+     * @param target Internal name of the targeted class
+     * @return Internal names of the graft sources targeting the class, in classpath order
+     */
+    public List<String> getSources(String target) {
+        return sourcesByTarget.getOrDefault(target, Collections.emptyList());
+    }
+
+    /**
+     * Get the location of the class data of an indexed graft source
+     * @param source Internal name of the graft source
+     * @return Location of the class data, or null if the class is not an indexed graft source. Locations of classes in
+     * nested archives can only be read through {@link Loader#getClassBytes(URL)}
+     */
+    public URL getLocation(String source) {
+        return locations.get(source);
+    }
+
+    /**
+     * Get all targets that have at least one indexed graft source
+     * @return Internal names of all targeted classes, in classpath order
+     */
+    public Set<String> getTargets() {
+        return Collections.unmodifiableSet(sourcesByTarget.keySet());
+    }
+
+    public boolean isEmpty() {
+        return sourcesByTarget.isEmpty();
+    }
+
+    /**
+     * Locate all graft sources in parallel and merge them into an index
+     * @param locators Locators of all classes which may be graft sources, in classpath order
+     * @return Merged index
+     * @throws IOException If any class could not be read
+     */
+    private static InjectionIndex build(List<Locator> locators) throws IOException {
+        final List<Located> found;
+        try {
+            // Ordered collection of a parallel stream preserves encounter order
+            found = locators
+                    .parallelStream()
+                    .map(locator -> {
+                        try {
+                            return locator.locate();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        final LinkedHashMap<String, List<String>> sourcesByTarget = new LinkedHashMap<>();
+        final HashMap<String, URL> locations = new HashMap<>();
+        for (Located located : found)
+            if (locations.putIfAbsent(located.source, located.location) == null)
+                sourcesByTarget.computeIfAbsent(located.target, k -> new ArrayList<>()).add(located.source);
+
+        for (Map.Entry<String, List<String>> entry : sourcesByTarget.entrySet())
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+
+        return new InjectionIndex(sourcesByTarget, locations);
+    }
+
+    /**
+     * Find all archives on the classpath of the given loader (and its parents)
+     * @param loader Loader to find archives for
+     * @return Archive files, in classpath order
+     * @throws IOException If the classpath resources could not be enumerated
+     */
+    private static Set<File> getClasspathArchives(ClassLoader loader) throws IOException {
+        final LinkedHashSet<File> archives = new LinkedHashSet<>();
+
+        for (ClassLoader current = loader; current != null; current = current.getParent())
+            if (current instanceof URLClassLoader)
+                for (URL url : ((URLClassLoader) current).getURLs())
+                    addArchive(url, archives);
+
+        // The application class loader is not a URLClassLoader since Java 9
+        if (loader == ClassLoader.getSystemClassLoader())
+            for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator))
+                if (!entry.isEmpty())
+                    addArchive(new File(entry), archives);
+
+        // Pretty much every archive declares a manifest, so this covers loaders that don't expose their classpath
+        Enumeration<URL> manifests = loader.getResources("META-INF/MANIFEST.MF");
+        while (manifests.hasMoreElements()) {
+            final URL manifest = manifests.nextElement();
+            if ("jar".equals(manifest.getProtocol())) {
+                final String path = manifest.getPath();
+                addArchive(new URL(path.substring(0, path.indexOf("!/"))), archives);
+            }
+        }
+
+        return archives;
+    }
+
+    private static void addArchive(URL url, Set<File> archives) {
+        if ("file".equals(url.getProtocol()))
+            try {
+                addArchive(new File(url.toURI()), archives);
+            } catch (URISyntaxException | IllegalArgumentException ignored) {
+                // Not a local file
+            }
+    }
+
+    private static void addArchive(File file, Set<File> archives) {
+        if (file.isFile() && file.getName().endsWith(".jar"))
+            archives.add(file.getAbsoluteFile());
+    }
+
+    /**
+     * Collect locators for all classes in an archive which may be graft sources, including classes in archives nested
+     * inside it (as in fat jars). If the archive contains an index resource, only indexed classes are collected from
+     * it. Class entries are only read (and inflated) once the returned locators are run
+     * @param archiveName Name of the archive used to derive resource locations
+     * @param reader Reader for the archive
+     * @param collect Collection to add locators to
+     * @param open Collection to add readers for nested archives to, such that they can be closed after use
+     * @throws IOException If a nested archive or the index could not be read
+     */
+    private static void collectArchive(
+            String archiveName,
+            ArchiveReader reader,
+            List<Locator> collect,
+            List<ArchiveReader> open
+    ) throws IOException {
+        final Set<String> entries = reader.getEntryNames();
+        final byte[] index = entries.contains(INDEX_RESOURCE) ? reader.read(INDEX_RESOURCE) : null;
+
+        if (index != null)
+            for (Map.Entry<String, Set<String>> entry : readIndex(index).entrySet())
+                for (String source : entry.getValue()) {
+                    // Index may be stale
+                    if (entries.contains(source + ".class"))
+                        collect.add(indexed(entry.getKey(), source, new URL(archiveName + "!/" + source + ".class")));
+                }
+
+        for (String entry : entries)
+            if (index == null && entry.endsWith(".class") && !entry.startsWith("META-INF/"))
+                collect.add(scanned(new URL(archiveName + "!/" + entry), () -> reader.read(entry)));
+            else if (entry.endsWith(".jar")) {
+                final ArchiveReader nested = reader.openNested(entry);
+                open.add(nested);
+                collectArchive(archiveName + "!/" + entry, nested, collect, open);
+            }
+    }
+
+    /**
+     * Collect locators for all class files in a directory tree which may be graft sources. If the directory contains an
+     * index resource, only indexed classes are collected, else all class files are collected in a deterministic order
+     * @param root Root directory of the tree
+     * @param collect Collection to add locators to
+     * @throws IOException If the directory tree or the index could not be read
+     */
+    private static void collectDirectory(Path root, List<Locator> collect) throws IOException {
+        final Path index = root.resolve(INDEX_RESOURCE);
+        if (Files.isRegularFile(index)) {
+            for (Map.Entry<String, Set<String>> entry : readIndex(Files.readAllBytes(index)).entrySet())
+                for (String source : entry.getValue()) {
+                    final Path classFile = root.resolve(source + ".class");
+
+                    // Index may be stale
+                    if (Files.isRegularFile(classFile))
+                        collect.add(indexed(entry.getKey(), source, classFile.toUri().toURL()));
+                }
+
+            return;
+        }
+
+        if (!Files.exists(root))
+            return;
+
+        final ArrayList<Path> classFiles = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".class"))
+                    classFiles.add(file);
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Directory listing order is platform-dependent
+        Collections.sort(classFiles);
+
+        for (Path classFile : classFiles)
+            collect.add(scanned(classFile.toUri().toURL(), () -> Loader.getClassBytes(classFile.toFile())));
+    }
+
+    private static Map<String, Set<String>> readIndex(byte[] data) throws IOException {
+        final LinkedHashMap<String, Set<String>> entries = new LinkedHashMap<>();
+        read(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8), entries);
+        return entries;
+    }
+
+    /**
+     * Get the classpath root (directory or archive) containing a resource
+     * @param url Location of the resource
+     * @param resourceName Name of the resource
+     * @return Directory or archive file, or null if the resource is not located in a local directory or archive
+     */
+    private static File getResourceRoot(URL url, String resourceName) {
+        try {
+            switch (url.getProtocol()) {
+                case "file": {
+                    final String path = new File(url.toURI()).getAbsolutePath().replace(File.separatorChar, '/');
+                    return path.endsWith(resourceName) ?
+                            new File(path.substring(0, path.length() - resourceName.length())).getAbsoluteFile() :
+                            null;
+                }
+
+                case "jar": {
+                    // Format: jar:<archive url>!/<entry>
+                    final String path = url.getPath();
+                    final URL archiveURL = new URL(path.substring(0, path.indexOf("!/")));
+                    return "file".equals(archiveURL.getProtocol()) ? new File(archiveURL.toURI()).getAbsoluteFile() : null;
+                }
+
+                default:
+                    return null;
+            }
+        } catch (URISyntaxException | IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Locator for a class listed in an index resource
+    private static Locator indexed(String target, String source, URL location) {
+        final Located located = new Located(target, source, location);
+        return () -> located;
+    }
+
+    // Locator for a class which has to be read (and possibly parsed) to find out whether it is a graft source
+    private static Locator scanned(URL location, ClassData data) {
+        return () -> {
+            final byte[] classData = data.read();
+            final String target = Injector.findGraftTarget(classData);
+            return target == null ? null : new Located(target, new ClassReader(classData).getClassName(), location);
+        };
+    }
+
+    /**
+     * Parse index entries and add them to the given map
+     * @param reader Index data
+     * @param entries Map of target names to graft source names to add parsed entries to
+     * @throws IOException If the index could not be read or is malformed
+     */
+    static void read(Reader reader, Map<String, Set<String>> entries) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+
+            String[] entry = line.split("\\s+");
+            if (entry.length != 2)
+                throw new IOException(String.format("Malformed injection index entry: \"%s\"", line));
+
+            entries.computeIfAbsent(entry[0], k -> new LinkedHashSet<>()).add(entry[1]);
+        }
+    }
+
+    /**
+     * Write index entries
+     * @param writer Destination of the index data
+     * @param entries Map of target names to graft source names
+     * @throws IOException If the index could not be written
+     */
+    static void write(Writer writer, Map<String, ? extends Collection<String>> entries) throws IOException {
+        writer.write("# Generated by " + InjectClassProcessor.class.getName() + ": <target> <graft source>\n");
+
+        for (Map.Entry<String, ? extends Collection<String>> entry : entries.entrySet())
+            for (String source : entry.getValue())
+                writer.write(entry.getKey() + ' ' + source + '\n');
+    }
+
+
+    private interface ClassData {
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * Locates the graft source (if any) of a single class on the classpath
+     */
+    private interface Locator {
+        Located locate() throws IOException;
+    }
+
+    private static final class Located {
+        private final String target;
+        private final String source;
+        private final URL location;
+
+        private Located(String target, String source, URL location) {
+            this.target = target;
+            this.source = source;
+            this.location = location;
+        }
+    }
+}
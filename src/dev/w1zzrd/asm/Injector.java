@@ -1,23 +1,24 @@
 package dev.w1zzrd.asm;
 
 import dev.w1zzrd.asm.analysis.AsmAnnotation;
+import jdk.internal.org.objectweb.asm.ClassReader;
+import jdk.internal.org.objectweb.asm.ClassWriter;
 import jdk.internal.org.objectweb.asm.Type;
 import jdk.internal.org.objectweb.asm.tree.ClassNode;
 import jdk.internal.org.objectweb.asm.tree.FieldNode;
 import jdk.internal.org.objectweb.asm.tree.MethodNode;
-import java.io.File;
-import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.*;
 import java.net.URL;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.util.Enumeration;
-import java.util.Objects;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Simple class for automatically performing transformations
  */
 public class Injector {
+    private static final String INJECT_CLASS_DESC = Type.getDescriptor(InjectClass.class);
+
     /**
      * Attempt to inject all valid classes into the given merger from the given loader
      * @param loader Loader to get class resources from
@@ -25,12 +26,7 @@ public class Injector {
      * @throws IOException If any resource could not be loaded properly
      */
     public static void injectAll(ClassLoader loader, Combine merger) throws IOException {
-        Enumeration<URL> resources = loader.getResources("");
-        while (resources.hasMoreElements())
-            injectDirectory(new File(URLDecoder.decode(
-                    resources.nextElement().getFile(),
-                    StandardCharsets.UTF_8.name())
-            ), merger);
+        injectAll(loader, Collections.singletonMap(merger.getTargetName(), merger));
     }
 
     public static void injectAll(Combine merger) throws IOException {
@@ -47,52 +43,338 @@ public class Injector {
         return injectAll(ClassLoader.getSystemClassLoader(), name);
     }
 
-    // Inject all files in a given directory into the merger
-    private static void injectDirectory(File file, Combine merger) throws IOException {
-        if (file.isDirectory())
-            for (File child : Objects.requireNonNull(file.listFiles()))
-                injectDirectory(child, merger);
-        else injectFile(file, merger);
+    /**
+     * Inject all valid classes into each of the given targets. Unlike calling {@link #injectAll(ClassLoader, String)}
+     * for each target, graft sources are only located and parsed once, after which they are routed to the target they
+     * declare
+     * @param loader Loader to get class resources (targets and graft sources) from
+     * @param targets Names of the classes to inject into
+     * @return A merger for each target, keyed by the given target name, in the order the targets were given
+     * @throws IOException If any resource could not be loaded properly
+     */
+    public static Map<String, Combine> injectAll(ClassLoader loader, Collection<String> targets) throws IOException {
+        final Map<String, ClassNode> nodes = Loader.getClassNodes(targets, loader);
+
+        final LinkedHashMap<String, Combine> combines = new LinkedHashMap<>(nodes.size() * 2);
+        final HashMap<String, Combine> mergers = new HashMap<>(nodes.size() * 2);
+        for (Map.Entry<String, ClassNode> entry : nodes.entrySet())
+            combines.put(
+                    entry.getKey(),
+                    mergers.computeIfAbsent(entry.getValue().name, k -> new Combine(entry.getValue()))
+            );
+
+        injectAll(loader, mergers);
+        return combines;
+    }
+
+    public static Map<String, Combine> injectAll(Collection<String> targets) throws IOException {
+        return injectAll(ClassLoader.getSystemClassLoader(), targets);
+    }
+
+    /**
+     * Weave a class, using a persistent cache of woven classes. If the cache holds the result of weaving the current
+     * class data of the target with its current graft sources, the cached class data is returned without parsing any
+     * graft source or weaving
+     * @param loader Loader to get class resources (target and graft sources) from
+     * @param name Name of the class to weave
+     * @param cache Cache of woven classes
+     * @param writerFlags Flags for the class writer producing the woven class (see {@link Combine#toByteArray(int)})
+     * @return Woven class data
+     * @throws IOException If any resource could not be loaded properly, or the cache could not be accessed
+     */
+    public static byte[] weave(ClassLoader loader, String name, WovenClassCache cache, int writerFlags) throws IOException {
+        final byte[] data = Loader.getClassBytes(name, loader);
+        final InjectionIndex index = InjectionIndex.forLoader(loader);
+        final List<byte[]> sources = readSources(index, index.getSources(new ClassReader(data).getClassName()));
+
+        // Graft sources are only parsed on a cache miss
+        return cache.computeIfAbsent(cache.key(data, sources, writerFlags), () -> weave(data, sources, writerFlags));
     }
 
-    // Inject file into a given merger (if declared as such)
-    private static void injectFile(File file, Combine merger) throws IOException {
-        URL url = null;
-        try {
-            url = file.toURI().toURL();
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
+    public static byte[] weave(ClassLoader loader, String name, WovenClassCache cache) throws IOException {
+        return weave(loader, name, cache, ClassWriter.COMPUTE_MAXS);
+    }
+
+    public static byte[] weave(String name, WovenClassCache cache) throws IOException {
+        return weave(ClassLoader.getSystemClassLoader(), name, cache);
+    }
+
+    /**
+     * Weave class data with the given graft sources. Unlike the other injection methods, this does not locate any
+     * resources, so it may be used where class data is handed to the caller (e.g. by a class file transformer)
+     * @param target Class data of the class to weave
+     * @param sources Class data of the graft sources to inject, in order. All of them must target the given class
+     * @param writerFlags Flags for the class writer producing the woven class (see {@link Combine#toByteArray(int)})
+     * @return Woven class data
+     * @throws IllegalArgumentException If any of the given sources is not a graft source targeting the given class
+     */
+    public static byte[] weave(byte[] target, List<byte[]> sources, int writerFlags) {
+        final String name = new ClassReader(target).getClassName();
+        final Set<String> targets = Collections.singleton(name);
+
+        final ArrayList<Graft> grafts = new ArrayList<>(sources.size());
+        for (byte[] source : sources)
+            grafts.add(parseGraftOf(source, targets));
+
+        return weaveGrafts(target, grafts, writerFlags);
+    }
+
+    /**
+     * Weave class data with the given graft sources, using a persistent cache of woven classes (see
+     * {@link #weave(byte[], List, int)})
+     * @param target Class data of the class to weave
+     * @param sources Class data of the graft sources to inject, in order. All of them must target the given class
+     * @param cache Cache of woven classes
+     * @param writerFlags Flags for the class writer producing the woven class (see {@link Combine#toByteArray(int)})
+     * @return Woven class data
+     * @throws IOException If the cache could not be accessed
+     */
+    public static byte[] weave(byte[] target, List<byte[]> sources, WovenClassCache cache, int writerFlags) throws IOException {
+        return cache.computeIfAbsent(cache.key(target, sources, writerFlags), () -> weave(target, sources, writerFlags));
+    }
+
+    /**
+     * Locate the graft sources of all targets visible to a given loader, without parsing any targets. The result can be
+     * used to weave classes as they are loaded (see {@link #weave(byte[], List, int)})
+     * @param loader Loader to get class resources from
+     * @return Class data of graft sources, keyed by the internal name of the class they target. Each list is in
+     * injection order
+     * @throws IOException If any resource could not be loaded properly
+     */
+    public static Map<String, List<byte[]>> findGraftSources(ClassLoader loader) throws IOException {
+        final HashMap<String, List<byte[]>> sources = new HashMap<>();
+        for (Map.Entry<String, List<Graft>> grafts : findGrafts(loader, null).entrySet()) {
+            final ArrayList<byte[]> data = new ArrayList<>(grafts.getValue().size());
+            for (Graft graft : grafts.getValue())
+                data.add(graft.data);
+
+            sources.put(grafts.getKey(), Collections.unmodifiableList(data));
         }
-        ClassNode cNode;
 
-        assert url != null;
+        return sources;
+    }
+
+    /**
+     * Get the class targeted by a graft source. Only the class header and annotations are parsed
+     * @param data Class data of the graft source
+     * @return Internal name of the targeted class, or null if the class is not a graft source
+     */
+    public static String findGraftTarget(byte[] data) {
+        if (!Loader.containsUtf8Constant(data, INJECT_CLASS_DESC))
+            return null;
+
+        final ClassNode cNode = new ClassNode();
+        new ClassReader(data).accept(cNode, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
 
-        AsmAnnotation<InjectClass> annot;
+        final AsmAnnotation<InjectClass> annot = AsmAnnotation.getAnnotation(InjectClass.class, cNode.visibleAnnotations);
+        return annot == null ? null : ((Type) annot.getEntry("value")).getInternalName();
+    }
+
+    /**
+     * Parse the graft sources of a class into templates, such that they can be woven into any number of copies of the
+     * class without being parsed again (see {@link #weaveTemplates(byte[], List, int)})
+     * @param target Internal name of the targeted class
+     * @param sources Class data of the graft sources, in order. All of them must target the given class
+     * @return Templates of the given graft sources, in order
+     * @throws IllegalArgumentException If any of the given sources is not a graft source targeting the given class
+     */
+    static List<GraftTemplate> parseTemplates(String target, List<byte[]> sources) {
+        final Set<String> targets = Collections.singleton(target);
+
+        final ArrayList<GraftTemplate> templates = new ArrayList<>(sources.size());
+        for (byte[] source : sources)
+            templates.add(new GraftTemplate(parseGraftOf(source, targets).source));
+
+        return templates;
+    }
+
+    /**
+     * Weave class data with fresh instances of the given graft templates. Produces the same class data as weaving with
+     * the graft sources the templates were parsed from (see {@link #weave(byte[], List, int)})
+     * @param target Class data of the class to weave
+     * @param templates Templates of the graft sources to inject, in order
+     * @param writerFlags Flags for the class writer producing the woven class (see {@link Combine#toByteArray(int)})
+     * @return Woven class data
+     */
+    static byte[] weaveTemplates(byte[] target, List<GraftTemplate> templates, int writerFlags) {
+        final ArrayList<GraftSource> sources = new ArrayList<>(templates.size());
+        for (GraftTemplate template : templates)
+            sources.add(template.instantiate());
+
+        final Combine merger = new Combine(new ClassReader(target));
+        inject(merger, sources);
+        return merger.toByteArray(writerFlags);
+    }
 
-        if(url.getPath().endsWith(".class") &&
-                shouldInject(merger,
-                        (annot = AsmAnnotation.getAnnotation( // Load InjectClass annotation (if it exists)
-                                InjectClass.class,
-                                (cNode = Loader.getClassNode(url)).visibleAnnotations // Load class data
-                        )))) {
-            GraftSource source = new GraftSource(cNode);
+    private static byte[] weaveGrafts(byte[] target, List<Graft> grafts, int writerFlags) {
+        final Combine merger = new Combine(new ClassReader(target));
+        inject(merger, sourcesOf(grafts));
+        return merger.toByteArray(writerFlags);
+    }
+
+    /**
+     * Locate all graft sources for the given mergers and inject them into the merger they target. Candidate classes
+     * are read and parsed in parallel, after which graft sources are injected in a deterministic order
+     * @param loader Loader to get class resources from
+     * @param mergers Mergers to inject resources into, keyed by the internal name of their target
+     * @throws IOException If any resource could not be loaded properly
+     */
+    private static void injectAll(ClassLoader loader, Map<String, Combine> mergers) throws IOException {
+        for (Map.Entry<String, List<Graft>> grafts : findGrafts(loader, mergers.keySet()).entrySet())
+            inject(mergers.get(grafts.getKey()), sourcesOf(grafts.getValue()));
+    }
+
+    /**
+     * Read and parse all graft sources targeting any of the given targets. Graft sources are looked up in the index of
+     * the loader (see {@link InjectionIndex#forLoader(ClassLoader)}), so only the graft sources of the given targets are
+     * read
+     * @param loader Loader to get class resources from
+     * @param targets Internal names of targets to locate graft sources for, or null to locate graft sources for any
+     *                target
+     * @return Graft sources grouped by target, each group in classpath order
+     * @throws IOException If any resource could not be loaded properly
+     */
+    private static Map<String, List<Graft>> findGrafts(ClassLoader loader, Set<String> targets) throws IOException {
+        final InjectionIndex index = InjectionIndex.forLoader(loader);
+
+        final ArrayList<String> sources = new ArrayList<>();
+        for (String target : targets == null ? index.getTargets() : targets)
+            sources.addAll(index.getSources(target));
+
+        return parseGrafts(index, sources, readSources(index, sources), targets);
+    }
+
+    /**
+     * Read the class data of indexed graft sources in bulk
+     * @param index Index the graft sources were looked up in
+     * @param sources Internal names of the graft sources
+     * @return Class data of each graft source, in the order they were given
+     * @throws IOException If any graft source could not be read
+     */
+    private static List<byte[]> readSources(InjectionIndex index, List<String> sources) throws IOException {
+        final ArrayList<URL> locations = new ArrayList<>(sources.size());
+        for (String source : sources)
+            locations.add(index.getLocation(source));
+
+        return Loader.getResourceBytes(locations);
+    }
+
+    /**
+     * Parse graft sources targeting any of the given targets on the common fork-join pool
+     * @param index Index the graft sources were looked up in
+     * @param sources Internal names of the graft sources
+     * @param data Class data of each graft source
+     * @param targets Internal names of targets to collect graft sources for, or null to collect all graft sources
+     * @return Graft sources grouped by target, with each group in the same relative order as the given sources
+     */
+    private static Map<String, List<Graft>> parseGrafts(
+            InjectionIndex index,
+            List<String> sources,
+            List<byte[]> data,
+            Set<String> targets
+    ) {
+        // Ordered collection of a parallel stream preserves encounter order
+        return IntStream.range(0, sources.size())
+                .parallel()
+                .mapToObj(i -> parseGraft(index.getLocation(sources.get(i)).toExternalForm(), data.get(i), targets))
+                .filter(Objects::nonNull)
+                .collect(Collectors.groupingBy(graft -> graft.target, LinkedHashMap::new, Collectors.toList()));
+    }
+
+    // Parse class data as a graft source (if declared as such and targeting any of the given targets)
+    private static Graft parseGraft(String resourceName, byte[] data, Set<String> targets) {
+        // Index may be stale
+        if (!Loader.containsUtf8Constant(data, INJECT_CLASS_DESC))
+            return null;
+
+        return parseGraft(Loader.readClass(resourceName, null, data), data, targets);
+    }
+
+    // Parse class data which must be a graft source targeting the given target
+    private static Graft parseGraftOf(byte[] data, Set<String> targets) {
+        // Combine consumes the nodes of graft sources, so they must never be shared through the class node cache
+        final Graft graft = parseGraft(Loader.readClass(data), data, targets);
+        if (graft == null)
+            throw new IllegalArgumentException(String.format(
+                    "Class %s is not a graft source for %s",
+                    new ClassReader(data).getClassName(),
+                    targets.iterator().next()
+            ));
+
+        return graft;
+    }
+
+    // Parse a class node as a graft source (if declared as such and targeting any of the given targets)
+    private static Graft parseGraft(ClassNode cNode, byte[] data, Set<String> targets) {
+        // Load InjectClass annotation (if it exists)
+        final AsmAnnotation<InjectClass> annot = AsmAnnotation.getAnnotation(InjectClass.class, cNode.visibleAnnotations);
+        if (annot == null)
+            return null;
+
+        final String target = ((Type) annot.getEntry("value")).getInternalName();
+        if (targets != null && !targets.contains(target))
+            return null;
+
+        return new Graft(target, data, new GraftSource(cNode));
+    }
+
+    /**
+     * Inject graft sources into their target. Methods and fields from all graft sources are injected in order of
+     * their declared priority, with ties broken by the order of the graft sources. Interfaces of graft sources which
+     * declare {@link InjectClass#injectInterfaces()} are added to the target
+     * @param merger Merger to inject into
+     * @param sources Graft sources to inject
+     */
+    static void inject(Combine merger, List<GraftSource> sources) {
+        final ArrayList<Map.Entry<MethodNode, GraftSource>> methods = new ArrayList<>();
+        final ArrayList<Map.Entry<FieldNode, GraftSource>> fields = new ArrayList<>();
+        final ArrayList<String> interfaces = new ArrayList<>();
+
+        for (GraftSource source : sources) {
             for (MethodNode mNode : source.getInjectMethods())
-                merger.inject(mNode, source);
+                methods.add(new AbstractMap.SimpleImmutableEntry<>(mNode, source));
 
             for (FieldNode fNode : source.getInjectFields())
-                merger.inject(fNode, source);
+                fields.add(new AbstractMap.SimpleImmutableEntry<>(fNode, source));
 
-            if ((Boolean)annot.getEntry("injectInterfaces")) {
-                for (String iface : cNode.interfaces)
-                    merger.addInterface(iface);
-            }
+            final ClassNode cNode = source.getClassNode();
+            final AsmAnnotation<InjectClass> annot = AsmAnnotation.getAnnotation(InjectClass.class, cNode.visibleAnnotations);
+            if (annot != null && (Boolean)annot.getEntry("injectInterfaces"))
+                interfaces.addAll(cNode.interfaces);
         }
+
+        // List.sort is stable, so source order is retained for equal priorities
+        methods.sort(Comparator.comparingInt(it -> it.getValue().getMethodInjectAnnotation(it.getKey()).<Integer>getEntry("priority")));
+        fields.sort(Comparator.comparingInt(it -> it.getValue().getFieldInjectAnnotation(it.getKey()).<Integer>getEntry("priority")));
+
+        for (Map.Entry<MethodNode, GraftSource> method : methods)
+            merger.inject(method.getKey(), method.getValue());
+
+        for (Map.Entry<FieldNode, GraftSource> field : fields)
+            merger.inject(field.getKey(), field.getValue());
+
+        for (String iface : interfaces)
+            merger.addInterface(iface);
     }
 
-    private static boolean shouldInject(Combine combine, AsmAnnotation<InjectClass> annot) {
-        return annot != null && ((Type) annot
-                .getEntry("value"))
-                .getClassName()
-                .equals(combine.getTargetName());
+    private static List<GraftSource> sourcesOf(List<Graft> grafts) {
+        final ArrayList<GraftSource> sources = new ArrayList<>(grafts.size());
+        for (Graft graft : grafts)
+            sources.add(graft.source);
+
+        return sources;
+    }
+
+
+    private static final class Graft {
+        private final String target;
+        private final byte[] data;
+        private final GraftSource source;
+
+        private Graft(String target, byte[] data, GraftSource source) {
+            this.target = target;
+            this.data = data;
+            this.source = source;
+        }
     }
 }
@@ -3,12 +3,38 @@ package dev.w1zzrd.asm;
 import jdk.internal.org.objectweb.asm.ClassReader;
 import jdk.internal.org.objectweb.asm.tree.ClassNode;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Objects;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
 public class Loader {
+    private static volatile ClassNodeCache classNodeCache = new ClassNodeCache();
+
+    /**
+     * Get the cache used when loading class nodes
+     * @return Current class node cache or null if caching is disabled
+     */
+    public static ClassNodeCache getClassNodeCache() {
+        return classNodeCache;
+    }
+
+    /**
+     * Set the cache to use when loading class nodes
+     * @param cache Cache to use or null to disable caching
+     */
+    public static void setClassNodeCache(ClassNodeCache cache) {
+        classNodeCache = cache;
+    }
 
     /**
      * Get a glass node from a given resource
@@ -17,7 +43,7 @@ public class Loader {
      * @throws IOException If the resource cannot be loaded
      */
     public static ClassNode getClassNode(URL url) throws IOException {
-        return readClass(getClassBytes(url));
+        return readClass(url.toExternalForm(), null, getClassBytes(url));
     }
 
     /**
@@ -38,7 +64,7 @@ public class Loader {
      * @throws IOException If the class data resource cannot be loaded
      */
     public static ClassNode getClassNode(String name) throws IOException {
-        return readClass(getClassBytes(name));
+        return getClassNode(name, ClassLoader.getSystemClassLoader());
     }
 
     /**
@@ -49,7 +75,19 @@ public class Loader {
      * @throws IOException If the class data resource cannot be loaded
      */
     public static ClassNode getClassNode(String name, ClassLoader loader) throws IOException {
-        return readClass(getClassBytes(name, loader));
+        return readClass(name, loader, getClassBytes(name, loader));
+    }
+
+    /**
+     * Read class data to a class node through the class node cache (if one is set)
+     * @param name Name of the class (or other unique resource identifier)
+     * @param loader Loader the class data was loaded from
+     * @param data Bytecode to read
+     * @return Class node read
+     */
+    static ClassNode readClass(String name, ClassLoader loader, byte[] data) {
+        final ClassNodeCache cache = classNodeCache;
+        return cache == null ? readClass(data) : cache.get(name, loader, data);
     }
 
     /**
@@ -70,7 +108,7 @@ public class Loader {
      * @throws IOException If the class data resource cannot be loaded
      */
     public static byte[] getClassBytes(String name, ClassLoader loader) throws IOException {
-        return getClassBytes(Objects.requireNonNull(loader.getResource(name.replace('.', '/') + ".class")));
+        return getClassBytes(Objects.requireNonNull(loader.getResource(getClassResourceName(name))));
     }
 
     /**
@@ -80,13 +118,309 @@ public class Loader {
      * @throws IOException If the class data resource cannot be loaded
      */
     public static byte[] getClassBytes(URL url) throws IOException {
-        InputStream stream = url.openStream();
-        byte[] classData = new byte[stream.available()];
+        // URLs of entries in nested archives can't be opened through the jar protocol handler
+        if ("jar".equals(url.getProtocol()) && url.getPath().indexOf("!/") != url.getPath().lastIndexOf("!/"))
+            return getResourceBytes(Collections.singletonList(url)).get(0);
+
+        return readResource(url);
+    }
+
+    /**
+     * Read class nodes for a collection of classes in bulk
+     * @param names Names of the classes to load
+     * @param loader Loader to use when locating the class resources
+     * @return Class nodes, keyed by the requested class name, in the order they were requested
+     * @throws IOException If any of the class data resources cannot be loaded
+     * @see #getClassBytes(Collection, ClassLoader)
+     */
+    public static Map<String, ClassNode> getClassNodes(Collection<String> names, ClassLoader loader) throws IOException {
+        Map<String, byte[]> classBytes = getClassBytes(names, loader);
+        LinkedHashMap<String, ClassNode> nodes = new LinkedHashMap<>(classBytes.size() * 2);
+
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet())
+            nodes.put(entry.getKey(), readClass(entry.getKey(), loader, entry.getValue()));
+
+        return nodes;
+    }
+
+    /**
+     * Get class bytecode for a collection of classes using the system class loader
+     * @param names Names of the classes to get data for
+     * @return Bytecode for each class, keyed by the requested class name
+     * @throws IOException If any of the class data resources cannot be loaded
+     * @see #getClassBytes(Collection, ClassLoader)
+     */
+    public static Map<String, byte[]> getClassBytes(Collection<String> names) throws IOException {
+        return getClassBytes(names, ClassLoader.getSystemClassLoader());
+    }
+
+    /**
+     * Get class bytecode for a collection of classes in bulk. Class resources located in the same archive (including
+     * archives nested in other archives) are read through a single handle to said archive, with entry sizes taken from the archive central directory, rather than
+     * re-opening the archive for every class. Class resources located in directories are read through file channels
+     * @param names Names of the classes to get data for
+     * @param loader Loader to use when locating the class resources
+     * @return Bytecode for each class, keyed by the requested class name, in the order they were requested
+     * @throws IOException If any of the class data resources cannot be loaded
+     */
+    public static Map<String, byte[]> getClassBytes(Collection<String> names, ClassLoader loader) throws IOException {
+        ArrayList<URL> urls = new ArrayList<>(names.size());
+        for (String name : names)
+            urls.add(Objects.requireNonNull(
+                    loader.getResource(getClassResourceName(name)),
+                    () -> String.format("Could not locate class resource for %s", name)
+            ));
+
+        List<byte[]> data = getResourceBytes(urls);
+
+        LinkedHashMap<String, byte[]> classBytes = new LinkedHashMap<>(names.size() * 2);
+        Iterator<byte[]> iterator = data.iterator();
+        for (String name : names)
+            classBytes.put(name, iterator.next());
+
+        return classBytes;
+    }
+
+    /**
+     * Read a list of resources in bulk. Resources located in the same archive (including archives nested in other
+     * archives, as in fat jars) are read through a single handle to said archive, rather than re-opening the archive for
+     * every resource. Resources located in directories are read through file channels
+     * @param urls Resources to read
+     * @return Data of each resource, in the order they were given
+     * @throws IOException If any of the resources cannot be read
+     */
+    static List<byte[]> getResourceBytes(List<URL> urls) throws IOException {
+        byte[][] resourceBytes = new byte[urls.size()][];
+        HashMap<String, List<Integer>> archives = new HashMap<>();
+
+        for (int i = 0; i < resourceBytes.length; ++i) {
+            URL url = urls.get(i);
+            switch (url.getProtocol()) {
+                case "file":
+                    resourceBytes[i] = getClassBytes(toFile(url));
+                    break;
+
+                case "jar": {
+                    // Format: jar:<archive url>!/<entry>, where the archive may itself be an entry of another archive
+                    final String path = url.getPath();
+                    final URL archiveURL = new URL(path.substring(0, path.indexOf("!/")));
+
+                    if ("file".equals(archiveURL.getProtocol()))
+                        archives.computeIfAbsent(path.substring(0, path.lastIndexOf("!/")), k -> new ArrayList<>()).add(i);
+                    else
+                        // Archive is not a local file
+                        resourceBytes[i] = readResource(url);
+
+                    break;
+                }
+
+                default:
+                    resourceBytes[i] = readResource(url);
+            }
+        }
+
+        HashMap<String, ArchiveReader> open = new HashMap<>();
+        try {
+            for (Map.Entry<String, List<Integer>> archive : archives.entrySet()) {
+                final ArchiveReader reader = openArchive(archive.getKey(), open);
+                for (int index : archive.getValue()) {
+                    final String path = urls.get(index).getPath();
+                    final String entry = path.substring(path.lastIndexOf("!/") + 2);
+                    resourceBytes[index] = Objects.requireNonNull(
+                            reader.read(entry),
+                            () -> String.format("No entry %s in archive %s", entry, archive.getKey())
+                    );
+                }
+            }
+        } finally {
+            // Nested archives are views of the archive containing them, so only the outermost archives hold handles
+            for (ArchiveReader reader : open.values())
+                reader.close();
+        }
+
+        return Arrays.asList(resourceBytes);
+    }
 
-        int total = 0;
-        do total += stream.read(classData, total, classData.length - total);
-        while (total < classData.length);
+    /**
+     * Open a (possibly nested) local archive
+     * @param path Archive path: a file URL, followed by the names of any nested archive entries, separated by "!/"
+     * @param open Readers opened so far, keyed by their path. Opened readers are added to this map
+     * @return Reader for the archive
+     * @throws IOException If the archive (or any archive containing it) cannot be opened
+     */
+    private static ArchiveReader openArchive(String path, Map<String, ArchiveReader> open) throws IOException {
+        ArchiveReader reader = open.get(path);
+        if (reader != null)
+            return reader;
+
+        final int separator = path.lastIndexOf("!/");
+        if (separator < 0)
+            reader = ArchiveReader.open(toFile(new URL(path)));
+        else {
+            final String entry = path.substring(separator + 2);
+            reader = openArchive(path.substring(0, separator), open).openNested(entry);
+            if (reader == null)
+                throw new IOException(String.format("No entry %s in archive %s", entry, path.substring(0, separator)));
+        }
+
+        open.put(path, reader);
+        return reader;
+    }
+
+    /**
+     * Check whether the constant pool of the given class data contains a given UTF-8 constant. This only scans the
+     * constant pool of the class, so it is a very cheap way of ruling out classes which cannot possibly reference a
+     * given type descriptor (e.g. that of an annotation) before fully parsing them
+     * @param data Class data to check
+     * @param value Constant to look for
+     * @return True if the constant exists in the constant pool or if the class data is malformed, else false
+     */
+    public static boolean containsUtf8Constant(byte[] data, String value) {
+        final byte[] find = value.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            // Skip magic and version
+            final int count = readU2(data, 8);
+            int offset = 10;
+
+            for (int i = 1; i < count; ++i) {
+                switch (data[offset]) {
+                    case 1: { // Utf8
+                        final int length = readU2(data, offset + 1);
+                        if (length == find.length && regionMatches(data, offset + 3, find))
+                            return true;
+
+                        offset += 3 + length;
+                        break;
+                    }
+
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+
+                    case 5: // Long
+                    case 6: // Double
+                        // 64-bit constants occupy two constant pool slots
+                        offset += 9;
+                        ++i;
+                        break;
+
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        offset += 3;
+                        break;
+
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+
+                    default:
+                        // Unknown constant: let the actual class parser deal with it
+                        return true;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Read the contents of a class file through a file channel
+     * @param file Class file to read
+     * @return Contents of the file
+     * @throws IOException If the file cannot be read
+     */
+    static byte[] getClassBytes(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(String.format("Class file too large: %s", file));
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0)
+                    break;
+
+            // File may have been truncated while we were reading it
+            return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+        }
+    }
+
+    private static byte[] readResource(URL url) throws IOException {
+        // Cached jar connections keep their archive open after the stream is closed
+        final URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection)
+            connection.setUseCaches(false);
+
+        try (InputStream stream = connection.getInputStream()) {
+            return readFully(stream, stream.available());
+        }
+    }
+
+    /**
+     * Get the name of the resource containing class data for a given class
+     * @param name Name of the class
+     * @return Resource name of the class file
+     */
+    static String getClassResourceName(String name) {
+        return name.replace('.', '/') + ".class";
+    }
+
+    /**
+     * Read a stream until it is exhausted. Unlike relying on {@link InputStream#available()}, this will not truncate
+     * data from streams which under-report their size
+     * @param stream Stream to read
+     * @param sizeHint Expected size of the data
+     * @return All data read from the stream
+     * @throws IOException If the stream cannot be read
+     */
+    static byte[] readFully(InputStream stream, int sizeHint) throws IOException {
+        byte[] data = new byte[Math.max(sizeHint, 512)];
+
+        int total = 0, read;
+        while ((read = stream.read(data, total, data.length - total)) >= 0)
+            if ((total += read) == data.length) {
+                // Check for end of stream before growing the buffer
+                int next = stream.read();
+                if (next < 0)
+                    return data;
+
+                data = Arrays.copyOf(data, data.length * 2);
+                data[total++] = (byte) next;
+            }
+
+        return total == data.length ? data : Arrays.copyOf(data, total);
+    }
+
+    private static int readU2(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] find) {
+        for (int i = 0; i < find.length; ++i)
+            if (data[offset + i] != find[i])
+                return false;
+
+        return true;
+    }
 
-        return classData;
+    private static File toFile(URL url) throws IOException {
+        try {
+            return Paths.get(url.toURI()).toFile();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException(String.format("Could not resolve file for resource %s", url), e);
+        }
     }
 }
@@ -0,0 +1,232 @@
+package dev.w1zzrd.asm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import static jdk.internal.org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+
+/**
+ * Class loader which weaves classes as it loads them, such that woven classes never have to be defined ahead of use
+ * (as with {@link Combine#compile()}).<br>
+ * <br>
+ * The loader holds an index of the graft sources of each target. Classes are located on the URLs of the loader after
+ * delegating to the parent loader, as with any {@link URLClassLoader}; when a class is found, a single hash lookup
+ * determines whether it is woven or loaded as-is. The loader is parallel capable: every class name is loaded (and
+ * woven) under its own lock, so independent classes are loaded and woven concurrently, while threads racing to load the
+ * same class wait for the first one to define it.<br>
+ * <br>
+ * Since parent loaders are consulted first, targets must only be visible to this loader (and not to its parents) for
+ * them to be woven.
+ */
+public class WeavingClassLoader extends URLClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final Map<String, List<byte[]>> sources;
+    private final WovenClassCache cache;
+    private final int writerFlags;
+
+    /**
+     * Create a loader for a given graft source index
+     * @param urls URLs to load classes from
+     * @param parent Parent loader
+     * @param sources Class data of graft sources, keyed by the internal name of the class they target (see
+     *                {@link Injector#findGraftSources(ClassLoader)})
+     * @param cache Cache of woven classes, or null to weave every target as it is loaded
+     * @param writerFlags Flags for the class writer producing woven classes
+     */
+    public WeavingClassLoader(
+            URL[] urls,
+            ClassLoader parent,
+            Map<String, List<byte[]>> sources,
+            WovenClassCache cache,
+            int writerFlags
+    ) {
+        super(urls, parent);
+        this.sources = new HashMap<>(sources);
+        this.cache = cache;
+        this.writerFlags = writerFlags;
+    }
+
+    /**
+     * Create a loader weaving all targets of the graft sources visible to it
+     * @param urls URLs to load classes from
+     * @param parent Parent loader
+     * @param cache Cache of woven classes, or null to weave every target as it is loaded
+     * @throws IOException If graft sources could not be located
+     */
+    public WeavingClassLoader(URL[] urls, ClassLoader parent, WovenClassCache cache) throws IOException {
+        super(urls, parent);
+        this.sources = Injector.findGraftSources(this);
+        this.cache = cache;
+        this.writerFlags = COMPUTE_MAXS;
+    }
+
+    /**
+     * Check whether or not a class is woven by this loader
+     * @param name Binary name of the class
+     * @return True if any graft sources target the class
+     */
+    public boolean isTarget(String name) {
+        return sources.containsKey(name.replace('.', '/'));
+    }
+
+    // Called by loadClass while holding the class loading lock of the class, so each class is only woven once
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        final String internalName = name.replace('.', '/');
+        final List<byte[]> grafts = sources.get(internalName);
+        if (grafts == null)
+            return super.findClass(name);
+
+        final String resourceName = internalName + ".class";
+        final URL resource = findResource(resourceName);
+        if (resource == null)
+            throw new ClassNotFoundException(name);
+
+        final byte[] woven;
+        final Manifest manifest;
+        try {
+            final byte[] data = Loader.getClassBytes(resource);
+            woven = cache == null ?
+                    Injector.weave(data, grafts, writerFlags) :
+                    Injector.weave(data, grafts, cache, writerFlags);
+
+            manifest = readManifest(resource);
+        } catch (IOException | RuntimeException e) {
+            throw new ClassNotFoundException(String.format("Could not weave %s", name), e);
+        }
+
+        final CodeSource codeSource = getCodeSource(resource, resourceName);
+        definePackageOf(name, manifest, codeSource == null ? null : codeSource.getLocation());
+
+        return defineClass(name, woven, 0, woven.length, codeSource);
+    }
+
+    /**
+     * Define the package of a class (if it hasn't been defined yet) before defining the class itself, as
+     * {@link URLClassLoader} does, such that packages of woven classes carry the version and sealing information
+     * declared by the manifest of their archive
+     * @param className Binary name of the class being defined
+     * @param manifest Manifest of the archive containing the class, or null if the class isn't located in an archive
+     * @param base Location of the archive or directory containing the class
+     * @throws SecurityException If the package is sealed, and the class violates the seal
+     */
+    private void definePackageOf(String className, Manifest manifest, URL base) {
+        final int split = className.lastIndexOf('.');
+        if (split < 0)
+            return;
+
+        final String name = className.substring(0, split);
+        Package pkg = findDefinedPackage(name);
+        if (pkg == null) {
+            try {
+                if (manifest != null)
+                    pkg = definePackage(name, manifest, base);
+                else
+                    pkg = definePackage(name, null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                // Package was defined concurrently by a thread loading another class in the same package
+                pkg = findDefinedPackage(name);
+            }
+        }
+
+        if (pkg == null)
+            return;
+
+        if (pkg.isSealed() ? base == null || !pkg.isSealed(base) : manifest != null && isSealed(name, manifest))
+            throw new SecurityException(String.format("Sealing violation in package %s", name));
+    }
+
+    private Package findDefinedPackage(String name) {
+        try {
+            return (Package) PackageLookup.getDefinedPackage.invoke(this, name);
+        } catch (Throwable t) {
+            throw new IllegalStateException(String.format("Could not look up package %s", name), t);
+        }
+    }
+
+    /**
+     * Read the manifest of the archive containing a resource. The archive is opened without the URL connection cache,
+     * and closed again once the manifest has been read, such that no archive handles are leaked
+     * @param resource Resource whose archive to read the manifest of
+     * @return Manifest of the archive, or null if the resource isn't located in an archive or the archive has no
+     * manifest
+     * @throws IOException If the archive could not be read
+     */
+    private static Manifest readManifest(URL resource) throws IOException {
+        final URLConnection connection = resource.openConnection();
+        if (!(connection instanceof JarURLConnection))
+            return null;
+
+        connection.setUseCaches(false);
+        try (final JarFile jar = ((JarURLConnection) connection).getJarFile()) {
+            return jar.getManifest();
+        }
+    }
+
+    // Check whether a manifest declares a package as sealed, as URLClassLoader does
+    private static boolean isSealed(String name, Manifest manifest) {
+        final Attributes attributes = manifest.getAttributes(name.replace('.', '/') + '/');
+        String sealed = attributes == null ? null : attributes.getValue(Attributes.Name.SEALED);
+        if (sealed == null && manifest.getMainAttributes() != null)
+            sealed = manifest.getMainAttributes().getValue(Attributes.Name.SEALED);
+
+        return "true".equalsIgnoreCase(sealed);
+    }
+
+    // Woven classes belong to the same code source as the class they were woven from
+    private static CodeSource getCodeSource(URL resource, String resourceName) {
+        final String url = resource.toExternalForm();
+
+        try {
+            if ("jar".equals(resource.getProtocol()))
+                return new CodeSource(new URL(url.substring(4, url.lastIndexOf("!/"))), (CodeSigner[]) null);
+
+            if (url.endsWith(resourceName))
+                return new CodeSource(new URL(url.substring(0, url.length() - resourceName.length())), (CodeSigner[]) null);
+        } catch (MalformedURLException ignored) {
+            // Unknown code source
+        }
+
+        return null;
+    }
+
+    private static final class PackageLookup {
+        // ClassLoader.getDefinedPackage (Java 9+), or ClassLoader.getPackage, which also searches parent loaders
+        private static final MethodHandle getDefinedPackage;
+
+        static {
+            final MethodType type = MethodType.methodType(Package.class, String.class);
+
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.publicLookup().findVirtual(ClassLoader.class, "getDefinedPackage", type);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                try {
+                    handle = MethodHandles.lookup().findVirtual(ClassLoader.class, "getPackage", type);
+                } catch (NoSuchMethodException | IllegalAccessException e1) {
+                    throw new ExceptionInInitializerError(e1);
+                }
+            }
+
+            getDefinedPackage = handle;
+        }
+    }
+}
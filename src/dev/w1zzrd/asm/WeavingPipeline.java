@@ -0,0 +1,401 @@
+package dev.w1zzrd.asm;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static jdk.internal.org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+
+/**
+ * Bulk weaving engine which weaves every entry of a source (e.g. an application jar) and writes the results to a
+ * sink. Work is split into three stages, connected by bounded queues:
+ * <ol>
+ *     <li>I/O threads read raw entry data from the source</li>
+ *     <li>Workers parse and weave targeted classes. All other entries are passed through untouched</li>
+ *     <li>A single writer (the thread running the pipeline) writes results to the sink</li>
+ * </ol>
+ * At most as many entries as the queue capacity are in flight at any time, so memory use is bounded by the queue capacity
+ * rather than the size of the source: at most one class is parsed per worker at any time.<br>
+ * <br>
+ * Entries are written in the order of the source, except that META-INF entries (and the manifest in particular) are
+ * written first, as expected of jars. Signature files are dropped if any class of the source is woven, since woven
+ * classes no longer match their signatures.<br>
+ * <br>
+ * The graft sources of each target are parsed once, when the target is first met, into templates (see
+ * {@link GraftTemplate}) which are shared by all workers and all runs of the pipeline.
+ */
+public final class WeavingPipeline {
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private final Map<String, List<byte[]>> sources;
+    private final ConcurrentHashMap<String, List<GraftTemplate>> templates = new ConcurrentHashMap<>();
+    private final int ioThreads;
+    private final int workers;
+    private final int queueCapacity;
+    private final int writerFlags;
+
+    /**
+     * Source of entries to weave. Entries may be read concurrently by several I/O threads
+     */
+    public interface Source extends Closeable {
+        List<String> getEntryNames() throws IOException;
+        byte[] read(String entry) throws IOException;
+    }
+
+    /**
+     * Destination of woven (and passed through) entries. Sinks are only accessed by a single thread
+     */
+    public interface Sink extends Closeable {
+        void write(String entry, byte[] data) throws IOException;
+    }
+
+    /**
+     * Create a pipeline sized after the amount of available processors
+     * @param sources Class data of graft sources, keyed by the internal name of the class they target (see
+     *                {@link Injector#findGraftSources(ClassLoader)})
+     */
+    public WeavingPipeline(Map<String, List<byte[]>> sources) {
+        this(sources, 2, Runtime.getRuntime().availableProcessors(), 64, COMPUTE_MAXS);
+    }
+
+    /**
+     * Create a pipeline
+     * @param sources Class data of graft sources, keyed by the internal name of the class they target (see
+     *                {@link Injector#findGraftSources(ClassLoader)})
+     * @param ioThreads Amount of threads reading entries from the source
+     * @param workers Amount of threads parsing and weaving classes
+     * @param queueCapacity Capacity of each queue between stages
+     * @param writerFlags Flags for the class writer producing woven classes
+     */
+    public WeavingPipeline(
+            Map<String, List<byte[]>> sources,
+            int ioThreads,
+            int workers,
+            int queueCapacity,
+            int writerFlags
+    ) {
+        this.sources = new HashMap<>(sources);
+        this.ioThreads = ioThreads;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.writerFlags = writerFlags;
+    }
+
+    /**
+     * Weave all entries of a source and write them to a sink. The source and sink are closed when all entries have been
+     * written
+     * @param source Source to read entries from
+     * @param sink Sink to write entries to
+     * @return Amount of classes woven
+     * @throws IOException If any entry could not be read, woven or written. No further entries are processed after a
+     * failure
+     * @throws InterruptedException If the thread running the pipeline is interrupted
+     */
+    public int run(Source source, Sink sink) throws IOException, InterruptedException {
+        try {
+            return run(orderEntries(source.getEntryNames()), source, sink);
+        } finally {
+            try {
+                source.close();
+            } finally {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Order entries for writing: META-INF entries first (starting with the manifest), followed by all other entries in
+     * source order. Signature files are removed if any class will be woven
+     * @param entries Entries in source order
+     * @return Entries to write, in order
+     */
+    private List<String> orderEntries(List<String> entries) {
+        boolean weaves = false;
+        for (String entry : entries)
+            if (isTarget(entry)) {
+                weaves = true;
+                break;
+            }
+
+        final ArrayList<String> ordered = new ArrayList<>(entries.size());
+        if (entries.contains(MANIFEST))
+            ordered.add(MANIFEST);
+
+        for (String entry : entries)
+            if (entry.startsWith("META-INF/") && !entry.equals(MANIFEST) && !(weaves && isSignatureFile(entry)))
+                ordered.add(entry);
+
+        for (String entry : entries)
+            if (!entry.startsWith("META-INF/"))
+                ordered.add(entry);
+
+        return ordered;
+    }
+
+    private boolean isTarget(String entry) {
+        return entry.endsWith(".class") && sources.containsKey(entry.substring(0, entry.length() - 6));
+    }
+
+    // Signature files are located directly in META-INF (see the JAR file specification)
+    private static boolean isSignatureFile(String entry) {
+        if (entry.indexOf('/', 9) >= 0)
+            return false;
+
+        final String name = entry.substring(9).toUpperCase(Locale.ROOT);
+        return name.startsWith("SIG-") ||
+                name.endsWith(".SF") ||
+                name.endsWith(".RSA") ||
+                name.endsWith(".DSA") ||
+                name.endsWith(".EC");
+    }
+
+    private int run(List<String> entries, Source source, Sink sink) throws IOException, InterruptedException {
+        final BlockingQueue<Item> read = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Item> woven = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicInteger next = new AtomicInteger();
+
+        // Entries are only read once there's room for them, so the writer never waits for an entry which can't be read
+        final Semaphore inFlight = new Semaphore(queueCapacity);
+
+        final ExecutorService readers = Executors.newFixedThreadPool(ioThreads);
+        final ExecutorService weavers = Executors.newFixedThreadPool(workers);
+
+        try {
+            for (int i = 0; i < ioThreads; ++i)
+                readers.execute(() -> {
+                    try {
+                        while (true) {
+                            // Indices are taken after entering, so the oldest entry in flight is always being read
+                            inFlight.acquire();
+                            final int index = next.getAndIncrement();
+                            if (index >= entries.size())
+                                break;
+
+                            final String entry = entries.get(index);
+
+                            Item item;
+                            try {
+                                item = new Item(index, entry, source.read(entry), false, null);
+                            } catch (Throwable t) {
+                                // A reader must never die silently, since the writer would wait for its entries forever
+                                item = new Item(index, entry, null, false, t);
+                            }
+
+                            read.put(item);
+                        }
+                    } catch (InterruptedException e) {
+                        // Pipeline was aborted
+                    }
+                });
+
+            for (int i = 0; i < workers; ++i)
+                weavers.execute(() -> {
+                    try {
+                        while (true)
+                            woven.put(weave(read.take()));
+                    } catch (InterruptedException e) {
+                        // All entries have been written, or the pipeline was aborted
+                    }
+                });
+
+            // Entries completed ahead of the next entry to write. Bounded by the amount of entries in flight
+            final HashMap<Integer, Item> completed = new HashMap<>();
+
+            int wovenCount = 0;
+            for (int i = 0; i < entries.size(); ++i) {
+                Item item = completed.remove(i);
+                while (item == null) {
+                    final Item done = woven.take();
+                    if (done.failure != null)
+                        throw new IOException(String.format("Could not weave entry %s", done.entry), done.failure);
+
+                    if (done.index == i)
+                        item = done;
+                    else
+                        completed.put(done.index, done);
+                }
+
+                sink.write(item.entry, item.data);
+                inFlight.release();
+
+                if (item.woven)
+                    ++wovenCount;
+            }
+
+            return wovenCount;
+        } finally {
+            // Unblocks all stages, which are waiting for entries (or for space in a queue, if the pipeline failed)
+            readers.shutdownNow();
+            weavers.shutdownNow();
+        }
+    }
+
+    private Item weave(Item item) {
+        if (item.failure != null || !item.entry.endsWith(".class"))
+            return item;
+
+        final String target = item.entry.substring(0, item.entry.length() - 6);
+        final List<byte[]> grafts = sources.get(target);
+        if (grafts == null)
+            return item;
+
+        try {
+            final List<GraftTemplate> targetTemplates =
+                    templates.computeIfAbsent(target, name -> Injector.parseTemplates(name, grafts));
+
+            return new Item(item.index, item.entry, Injector.weaveTemplates(item.data, targetTemplates, writerFlags), true, null);
+        } catch (Throwable t) {
+            return new Item(item.index, item.entry, null, false, t);
+        }
+    }
+
+    /**
+     * Create a source reading all files in a directory tree. Entries are named by their path relative to the root
+     * directory, separated by '/'
+     * @param root Root directory
+     * @return Directory source
+     */
+    public static Source directorySource(Path root) {
+        return new Source() {
+            @Override
+            public List<String> getEntryNames() throws IOException {
+                final ArrayList<String> entries = new ArrayList<>();
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile())
+                            entries.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+                // Directory listing order is platform-dependent
+                Collections.sort(entries);
+                return entries;
+            }
+
+            @Override
+            public byte[] read(String entry) throws IOException {
+                return Loader.getClassBytes(root.resolve(entry).toFile());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Create a source reading all file entries of an archive
+     * @param archive Archive file (e.g. a jar)
+     * @return Archive source
+     * @throws IOException If the archive could not be opened
+     */
+    public static Source archiveSource(File archive) throws IOException {
+        final ArchiveReader reader = ArchiveReader.open(archive);
+        return new Source() {
+            @Override
+            public List<String> getEntryNames() {
+                final ArrayList<String> entries = new ArrayList<>();
+                for (String entry : reader.getEntryNames())
+                    if (!entry.endsWith("/"))
+                        entries.add(entry);
+
+                return entries;
+            }
+
+            @Override
+            public byte[] read(String entry) throws IOException {
+                return reader.read(entry);
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * Create a sink writing entries as files in a directory tree
+     * @param root Root directory
+     * @return Directory sink
+     */
+    public static Sink directorySink(Path root) {
+        return new Sink() {
+            @Override
+            public void write(String entry, byte[] data) throws IOException {
+                final Path file = root.resolve(entry);
+                Files.createDirectories(file.getParent());
+                Files.write(file, data);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Create a sink writing entries to an archive
+     * @param archive Archive file to write (e.g. a jar). Replaced if it exists
+     * @return Archive sink
+     * @throws IOException If the archive could not be created
+     */
+    public static Sink archiveSink(Path archive) throws IOException {
+        final JarOutputStream stream = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(archive)));
+        return new Sink() {
+            @Override
+            public void write(String entry, byte[] data) throws IOException {
+                stream.putNextEntry(new ZipEntry(entry));
+                stream.write(data);
+                stream.closeEntry();
+            }
+
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    /**
+     * Create a sink collecting entries in a map
+     * @param entries Map to put entries in
+     * @return Map sink
+     */
+    public static Sink mapSink(Map<String, byte[]> entries) {
+        return new Sink() {
+            @Override
+            public void write(String entry, byte[] data) {
+                entries.put(entry, data);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static final class Item {
+        private final int index;
+        private final String entry;
+        private final byte[] data;
+        private final boolean woven;
+        private final Throwable failure;
+
+        private Item(int index, String entry, byte[] data, boolean woven, Throwable failure) {
+            this.index = index;
+            this.entry = entry;
+            this.data = data;
+            this.woven = woven;
+            this.failure = failure;
+        }
+    }
+}
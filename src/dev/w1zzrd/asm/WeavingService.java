@@ -0,0 +1,93 @@
+package dev.w1zzrd.asm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static jdk.internal.org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+
+/**
+ * Service weaving many classes concurrently. Each job weaves one target with a set of graft templates (see
+ * {@link GraftTemplate}) and runs on the executor of the service, which may be any executor, including one running
+ * each task on a virtual thread (Java 21+).<br>
+ * <br>
+ * Jobs share no mutable state: every job parses its own copy of the target into its own {@link Combine}, and
+ * instantiates its own graft sources from the (immutable) templates. Templates, and everything parsed from the graft
+ * classes, are shared between all jobs using them.
+ */
+public final class WeavingService {
+    private final Executor executor;
+    private final int writerFlags;
+
+    /**
+     * Create a service running jobs on the common fork-join pool
+     */
+    public WeavingService() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public WeavingService(Executor executor) {
+        this(executor, COMPUTE_MAXS);
+    }
+
+    /**
+     * Create a service running jobs on a given executor
+     * @param executor Executor to run jobs on
+     * @param writerFlags Flags for the class writer producing woven classes
+     */
+    public WeavingService(Executor executor, int writerFlags) {
+        this.executor = executor;
+        this.writerFlags = writerFlags;
+    }
+
+    /**
+     * Weave a class
+     * @param target Class data of the class to weave
+     * @param grafts Graft templates to inject into the target. Methods and fields are injected in order of their
+     *               declared priority, with ties broken by the order of the templates
+     * @return Future completed with the woven class data, or exceptionally if the class could not be woven
+     */
+    public CompletableFuture<byte[]> submit(byte[] target, List<GraftTemplate> grafts) {
+        final List<GraftTemplate> templates = new ArrayList<>(grafts);
+        return CompletableFuture.supplyAsync(() -> weave(target, templates), executor);
+    }
+
+    /**
+     * Locate the graft sources of the given targets and weave each target as a separate job. Graft sources are only
+     * located and parsed once; targets are read by their jobs
+     * @param loader Loader to get class resources (targets and graft sources) from
+     * @param targets Names of the classes to weave
+     * @return Futures completed with the woven class data, keyed by the given target name, in the order the targets
+     * were given
+     * @throws IOException If graft sources could not be located
+     */
+    public Map<String, CompletableFuture<byte[]>> weaveAll(ClassLoader loader, Collection<String> targets) throws IOException {
+        final Map<String, List<byte[]>> sources = Injector.findGraftSources(loader);
+
+        final LinkedHashMap<String, CompletableFuture<byte[]>> results = new LinkedHashMap<>(targets.size() * 2);
+        for (String target : targets) {
+            final List<byte[]> targetSources = sources.getOrDefault(target.replace('.', '/'), Collections.emptyList());
+
+            final ArrayList<GraftTemplate> templates = new ArrayList<>(targetSources.size());
+            for (byte[] source : targetSources)
+                templates.add(new GraftTemplate(new GraftSource(Loader.readClass(source))));
+
+            results.put(target, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return weave(Loader.getClassBytes(target, loader), templates);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+
+        return results;
+    }
+
+    private byte[] weave(byte[] target, List<GraftTemplate> templates) {
+        return Injector.weaveTemplates(target, templates, writerFlags);
+    }
+}
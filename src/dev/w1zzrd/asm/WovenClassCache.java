@@ -0,0 +1,362 @@
+package dev.w1zzrd.asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of woven class data.<br>
+ * <br>
+ * Woven classes are stored in a directory, keyed by a SHA-256 hash of everything that determines the output of
+ * weaving: the target class data, the class data of all graft sources (in injection order), the writer flags and the
+ * library version. A changed input therefore simply results in a cache miss, so entries never have to be invalidated.
+ * <br>
+ * <br>
+ * Entries are written to a temporary file and then atomically moved into place, so readers never observe partially
+ * written entries and need no locking. Weaving an entry is guarded by a file lock, such that JVMs starting concurrently
+ * with a shared cache directory don't weave the same class more than once. Within a JVM, all caches sharing a directory
+ * share their locks, so any number of caches (e.g. of an agent and a class loader) may use the same directory.<br>
+ * <br>
+ * The library version is taken from the implementation version of the library package. Builds without a version (e.g.
+ * development builds) are instead identified by a hash of the class files of the library, so a changed library never
+ * reuses entries woven by another build.
+ */
+public final class WovenClassCache {
+    private static final String ENTRY_SUFFIX = ".class";
+    private static final String LOCK_FILE = ".lock";
+
+    /**
+     * Amount of lock stripes. Entries are locked by locking a single byte of the lock file, so unrelated entries can be
+     * woven concurrently
+     */
+    private static final int STRIPES = 64;
+
+    // File locks are held on behalf of the whole JVM, so they must be shared by all caches using the same directory
+    private static final ConcurrentHashMap<Path, LockFile> lockFiles = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final String version;
+    private volatile LockFile lockFile;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Produces woven class data on a cache miss
+     */
+    public interface Weaver {
+        byte[] weave() throws IOException;
+    }
+
+    public WovenClassCache(Path directory) {
+        this(directory, defaultVersion());
+    }
+
+    /**
+     * Create a cache in the given directory
+     * @param directory Cache directory. Created if it doesn't exist
+     * @param version Library version (or any other string) to include in entry keys
+     */
+    public WovenClassCache(Path directory, String version) {
+        this.directory = directory;
+        this.version = version;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Compute the key of a woven class
+     * @param target Class data of the target class
+     * @param sources Class data of all graft sources injected into the target, in injection order
+     * @param writerFlags Flags passed to the class writer producing the woven class
+     * @return Hex-encoded SHA-256 hash identifying the woven class
+     */
+    public String key(byte[] target, List<byte[]> sources, int writerFlags) {
+        final MessageDigest digest = newDigest();
+
+        // Lengths are included so that inputs can't be shifted across boundaries to produce the same hash
+        final ByteBuffer header = ByteBuffer.allocate(12);
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        digest.update(header.putInt(writerFlags).putInt(target.length).putInt(sources.size()).array());
+        digest.update(target);
+
+        for (byte[] source : sources) {
+            header.clear();
+            digest.update(header.putInt(source.length).array(), 0, 4);
+            digest.update(source);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Get cached woven class data
+     * @param key Key of the woven class (see {@link #key(byte[], List, int)})
+     * @return Cached class data, or null if the class isn't cached
+     * @throws IOException If the cache entry exists but could not be read
+     */
+    public byte[] get(String key) throws IOException {
+        final Path entry = entryPath(key);
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(entry);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        // Entries are moved into place atomically, so anything that isn't a class file was put there by someone else
+        if (!isClassData(data)) {
+            Files.deleteIfExists(entry);
+            return null;
+        }
+
+        return data;
+    }
+
+    /**
+     * Store woven class data in the cache, replacing any existing entry
+     * @param key Key of the woven class (see {@link #key(byte[], List, int)})
+     * @param data Woven class data
+     * @throws IOException If the entry could not be written
+     */
+    public void put(String key, byte[] data) throws IOException {
+        Files.createDirectories(directory);
+
+        final Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(temp, data);
+
+            try {
+                Files.move(temp, entryPath(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                // Entries are still never observed partially written on POSIX file systems
+                Files.move(temp, entryPath(key), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Get cached woven class data, weaving and caching the class if it isn't cached. At most one thread (and process)
+     * weaves any given entry at a time; others wait for the entry to be written
+     * @param key Key of the woven class (see {@link #key(byte[], List, int)})
+     * @param weaver Produces the woven class data on a cache miss
+     * @return Woven class data
+     * @throws IOException If the cache could not be accessed or the weaver failed
+     */
+    public byte[] computeIfAbsent(String key, Weaver weaver) throws IOException {
+        byte[] data = get(key);
+        if (data != null) {
+            hits.incrementAndGet();
+            return data;
+        }
+
+        final LockFile lockFile = getLockFile();
+        final int stripe = Math.floorMod(key.hashCode(), STRIPES);
+
+        // File locks are held on behalf of the whole JVM, so threads of this JVM have to be excluded separately
+        synchronized (lockFile.stripes[stripe]) {
+            final FileLock lock = lockFile.getChannel().lock(stripe, 1, false);
+            try {
+                // Another process (or thread) may have woven the class while we waited
+                data = get(key);
+                if (data != null) {
+                    hits.incrementAndGet();
+                    return data;
+                }
+
+                misses.incrementAndGet();
+                data = weaver.weave();
+                put(key, data);
+                return data;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "WovenClassCache{directory=%s, version=%s, hits=%d, misses=%d}",
+                directory,
+                version,
+                hits.get(),
+                misses.get()
+        );
+    }
+
+    private LockFile getLockFile() throws IOException {
+        LockFile current = lockFile;
+        if (current == null) {
+            Files.createDirectories(directory);
+            lockFile = current = lockFiles.computeIfAbsent(directory.toRealPath(), LockFile::new);
+        }
+
+        return current;
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+
+    private static boolean isClassData(byte[] data) {
+        return data.length >= 4 &&
+                (data[0] & 0xFF) == 0xCA &&
+                (data[1] & 0xFF) == 0xFE &&
+                (data[2] & 0xFF) == 0xBA &&
+                (data[3] & 0xFF) == 0xBE;
+    }
+
+    private static String defaultVersion() {
+        final Package pkg = WovenClassCache.class.getPackage();
+        final String version = pkg == null ? null : pkg.getImplementationVersion();
+        return version == null ? LibraryHash.VALUE : version;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        final StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return hex.toString();
+    }
+
+    /**
+     * Hash of the class files of the library, identifying builds which don't declare a version. Computed once, when
+     * first needed
+     */
+    private static final class LibraryHash {
+        private static final String VALUE = compute();
+
+        private static String compute() {
+            final String name = WovenClassCache.class.getName();
+            final String root = name.substring(0, name.lastIndexOf('.') + 1).replace('.', '/');
+
+            try {
+                final CodeSource codeSource = WovenClassCache.class.getProtectionDomain().getCodeSource();
+                final File location = codeSource == null ? null : new File(codeSource.getLocation().toURI());
+
+                final MessageDigest digest = newDigest();
+                if (location != null && location.isDirectory())
+                    hashDirectory(location.toPath(), root, digest);
+                else if (location != null && location.isFile())
+                    hashArchive(location, root, digest);
+                else
+                    // Location is unknown, so only this class can be hashed
+                    hashEntry(name.replace('.', '/') + ".class", Loader.getClassBytes(name), digest);
+
+                return "sha256:" + toHex(digest.digest());
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                return "unversioned";
+            }
+        }
+
+        private static void hashDirectory(Path location, String root, MessageDigest digest) throws IOException {
+            final Path rootPath = location.resolve(root);
+            if (!Files.isDirectory(rootPath))
+                return;
+
+            final ArrayList<String> entries = new ArrayList<>();
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".class"))
+                        entries.add(location.relativize(file).toString().replace(File.separatorChar, '/'));
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            // Directory listing order is platform-dependent
+            Collections.sort(entries);
+
+            for (String entry : entries)
+                hashEntry(entry, Files.readAllBytes(location.resolve(entry)), digest);
+        }
+
+        private static void hashArchive(File location, String root, MessageDigest digest) throws IOException {
+            try (ArchiveReader reader = ArchiveReader.open(location)) {
+                final ArrayList<String> entries = new ArrayList<>();
+                for (String entry : reader.getEntryNames())
+                    if (entry.startsWith(root) && entry.endsWith(".class"))
+                        entries.add(entry);
+
+                Collections.sort(entries);
+
+                for (String entry : entries)
+                    hashEntry(entry, reader.read(entry), digest);
+            }
+        }
+
+        private static void hashEntry(String entry, byte[] data, MessageDigest digest) {
+            final byte[] entryName = entry.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(8).putInt(entryName.length).putInt(data.length).array());
+            digest.update(entryName);
+            digest.update(data);
+        }
+    }
+
+    /**
+     * Lock file of a cache directory, shared by all caches of this JVM using the directory
+     */
+    private static final class LockFile {
+        private final Path path;
+        private final Object[] stripes = new Object[STRIPES];
+        private FileChannel channel;
+
+        private LockFile(Path directory) {
+            this.path = directory.resolve(LOCK_FILE);
+
+            for (int i = 0; i < STRIPES; ++i)
+                stripes[i] = new Object();
+        }
+
+        // Channels are closed when a thread waiting for a lock is interrupted, in which case they have to be reopened
+        private synchronized FileChannel getChannel() throws IOException {
+            if (channel == null || !channel.isOpen())
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            return channel;
+        }
+    }
+}
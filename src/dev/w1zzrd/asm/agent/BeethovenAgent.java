@@ -0,0 +1,131 @@
+package dev.w1zzrd.asm.agent;
+
+import dev.w1zzrd.asm.Injector;
+import dev.w1zzrd.asm.WovenClassCache;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Paths;
+
+import static jdk.internal.org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+
+/**
+ * Java agent which weaves classes as they are loaded, rather than eagerly defining them through
+ * {@link dev.w1zzrd.asm.Combine#compile()}. Graft sources are located once, when the agent starts, after which only
+ * classes which are actually loaded are woven (see {@link WeavingTransformer}).<br>
+ * <br>
+ * When attached dynamically, already loaded targets are re-woven, and graft sources can be changed at runtime through
+ * change sets (see {@link #apply(GraftChangeSet)}) in either mode.<br>
+ * <br>
+ * The agent jar manifest must declare this class as its {@code Premain-Class} (and {@code Agent-Class}, for dynamic
+ * attachment), as well as {@code Can-Retransform-Classes: true} for runtime re-weaving. Agent arguments are given as
+ * a comma-separated list of options:
+ * <ul>
+ *     <li>{@code cache=<directory>}: cache woven classes in the given directory (see {@link WovenClassCache})</li>
+ *     <li>{@code flags=<int>}: class writer flags for woven classes (defaults to {@code COMPUTE_MAXS})</li>
+ *     <li>{@code verbose}: print classes which could not be woven to stderr. Failures are otherwise only recorded
+ *     (see {@link WeavingTransformer#getFailures()})</li>
+ * </ul>
+ */
+public final class BeethovenAgent {
+    private static volatile Instrumentation instrumentation;
+    private static volatile WeavingTransformer transformer;
+
+    public static void premain(String args, Instrumentation inst) throws IOException {
+        install(args, inst);
+    }
+
+    /**
+     * Entry point for dynamic attachment. Targets which have already been loaded are re-woven in a single
+     * retransformation
+     * @param args Agent arguments
+     * @param inst Instrumentation of the JVM attached to
+     * @throws IOException If graft sources could not be located
+     */
+    public static void agentmain(String args, Instrumentation inst) throws IOException {
+        final WeavingTransformer installed = install(args, inst);
+
+        if (inst.isRetransformClassesSupported())
+            installed.retransform(installed.getTargets(), inst);
+    }
+
+    /**
+     * Apply a set of graft source changes through the installed agent (see
+     * {@link WeavingTransformer#apply(GraftChangeSet, Instrumentation)})
+     * @param changes Changes to apply
+     * @throws IllegalStateException If the agent hasn't been installed
+     */
+    public static void apply(GraftChangeSet changes) {
+        final WeavingTransformer current = transformer;
+        if (current == null)
+            throw new IllegalStateException("Agent has not been installed");
+
+        current.apply(changes, instrumentation);
+    }
+
+    /**
+     * Get the transformer registered by the agent
+     * @return Installed transformer, or null if the agent hasn't been installed
+     */
+    public static WeavingTransformer getTransformer() {
+        return transformer;
+    }
+
+    /**
+     * Locate all graft sources visible to the system class loader and register a transformer weaving their targets
+     * @param args Agent arguments (see {@link BeethovenAgent})
+     * @param inst Instrumentation to register the transformer with
+     * @return The registered transformer
+     * @throws IOException If graft sources could not be located
+     */
+    public static WeavingTransformer install(String args, Instrumentation inst) throws IOException {
+        WovenClassCache cache = null;
+        int writerFlags = COMPUTE_MAXS;
+        boolean verbose = false;
+
+        if (args != null)
+            for (String option : args.split(",")) {
+                if (option.isEmpty())
+                    continue;
+
+                final int split = option.indexOf('=');
+                final String key = split < 0 ? option : option.substring(0, split);
+                final String value = split < 0 ? "" : option.substring(split + 1);
+
+                switch (key) {
+                    case "cache":
+                        cache = new WovenClassCache(Paths.get(value));
+                        break;
+
+                    case "flags":
+                        writerFlags = Integer.parseInt(value);
+                        break;
+
+                    case "verbose":
+                        verbose = true;
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException(String.format("Unknown agent option \"%s\"", option));
+                }
+            }
+
+        final WeavingTransformer installed = new WeavingTransformer(
+                Injector.findGraftSources(ClassLoader.getSystemClassLoader()),
+                cache,
+                writerFlags
+        );
+
+        if (verbose)
+            installed.setErrorHandler((name, error) -> {
+                System.err.println(String.format("Could not weave %s", name));
+                error.printStackTrace();
+            });
+
+        inst.addTransformer(installed, inst.isRetransformClassesSupported());
+
+        instrumentation = inst;
+        transformer = installed;
+        return installed;
+    }
+}
@@ -0,0 +1,65 @@
+package dev.w1zzrd.asm.agent;
+
+import jdk.internal.org.objectweb.asm.ClassReader;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Set of changes to the graft sources registered with a {@link WeavingTransformer}. All changes in a set are applied
+ * together, with a single retransformation of all affected targets (see
+ * {@link WeavingTransformer#apply(GraftChangeSet, java.lang.instrument.Instrumentation)}).<br>
+ * <br>
+ * Graft sources are identified by their class name. Adding a graft source which is already registered replaces it in
+ * place, which is how changed priorities (or any other change to the graft source) are applied.
+ */
+public final class GraftChangeSet {
+    private final LinkedHashMap<String, byte[]> added = new LinkedHashMap<>();
+    private final LinkedHashSet<String> removed = new LinkedHashSet<>();
+
+    /**
+     * Add or replace a graft source
+     * @param source Class data of the graft source
+     * @return This change set
+     */
+    public GraftChangeSet add(byte[] source) {
+        final String name = new ClassReader(source).getClassName();
+        removed.remove(name);
+        added.put(name, source);
+        return this;
+    }
+
+    /**
+     * Remove a graft source
+     * @param source Internal name of the graft source
+     * @return This change set
+     */
+    public GraftChangeSet remove(String source) {
+        added.remove(source);
+        removed.add(source);
+        return this;
+    }
+
+    /**
+     * Get all graft sources added (or replaced) by this change set
+     * @return Class data of added graft sources, keyed by their internal name
+     */
+    public Map<String, byte[]> getAdded() {
+        return Collections.unmodifiableMap(added);
+    }
+
+    /**
+     * Get all graft sources removed by this change set
+     * @return Internal names of removed graft sources
+     */
+    public Set<String> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+}
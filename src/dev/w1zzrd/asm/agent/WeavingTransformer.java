@@ -0,0 +1,257 @@
+package dev.w1zzrd.asm.agent;
+
+import dev.w1zzrd.asm.Injector;
+import dev.w1zzrd.asm.WovenClassCache;
+import dev.w1zzrd.asm.exception.RetransformationException;
+import jdk.internal.org.objectweb.asm.ClassReader;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Class file transformer which weaves classes as they are loaded. The transformer holds an index of the graft sources
+ * of each target, so classes which aren't targeted by any graft source are passed through after a single hash lookup,
+ * without being parsed.<br>
+ * <br>
+ * The graft sources of loaded classes can be changed at runtime through change sets (see
+ * {@link #apply(GraftChangeSet, Instrumentation)}), provided that the transformer was registered as being capable of
+ * retransformation. The transformer holds the original class data of every target it has seen, so targets are always
+ * re-woven from their original state. Targets are identified by name, so same-named classes in different loaders share
+ * their graft sources and original class data.<br>
+ * <br>
+ * Weaving failures during class loading are never propagated to the class loading the target, since the JVM discards
+ * exceptions thrown by transformers. Instead, the target is loaded as-is and the failure is recorded (see
+ * {@link #getFailures()}) and reported to the error handler, if one is set (see {@link #setErrorHandler(BiConsumer)}).
+ */
+public final class WeavingTransformer implements ClassFileTransformer {
+    private final WovenClassCache cache;
+    private final int writerFlags;
+
+    // Immutable snapshot of the graft source index. Replaced as a whole when a change set is applied
+    private volatile Map<String, List<byte[]>> sources;
+
+    private final ConcurrentHashMap<String, byte[]> originals = new ConcurrentHashMap<>();
+
+    // Failures of the change set being applied by the current thread (if any)
+    private final ThreadLocal<List<Throwable>> retransformFailures = new ThreadLocal<>();
+
+    // Latest failure of each class which could not be woven when it was loaded
+    private final ConcurrentHashMap<String, Throwable> failures = new ConcurrentHashMap<>();
+
+    private volatile BiConsumer<String, Throwable> errorHandler;
+
+    /**
+     * Create a transformer for a given graft source index
+     * @param sources Class data of graft sources, keyed by the internal name of the class they target (see
+     *                {@link Injector#findGraftSources(ClassLoader)})
+     * @param cache Cache of woven classes, or null to weave every target as it is loaded
+     * @param writerFlags Flags for the class writer producing woven classes
+     */
+    public WeavingTransformer(Map<String, List<byte[]>> sources, WovenClassCache cache, int writerFlags) {
+        this.sources = Collections.unmodifiableMap(new HashMap<>(sources));
+        this.cache = cache;
+        this.writerFlags = writerFlags;
+    }
+
+    /**
+     * Get the internal names of all classes this transformer weaves
+     * @return Targeted classes
+     */
+    public Set<String> getTargets() {
+        return sources.keySet();
+    }
+
+    /**
+     * Set the handler notified when a class could not be woven as it was loaded. Failures are recorded regardless of
+     * the handler (see {@link #getFailures()})
+     * @param errorHandler Handler accepting the internal name of the target and the failure, or null to only record
+     *                     failures
+     */
+    public void setErrorHandler(BiConsumer<String, Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Get the failures of all classes which could not be woven as they were loaded (and haven't been woven
+     * successfully since)
+     * @return Latest failure of each class, keyed by the internal name of the class
+     */
+    public Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap(new HashMap<>(failures));
+    }
+
+    /**
+     * Apply a set of graft source changes, re-weaving all affected classes which have already been loaded with a single
+     * retransformation. Classes which have yet to be loaded are woven according to the new graft sources when they are
+     * loaded.<br>
+     * <br>
+     * Retransformation can't change the schema of a class, so graft sources adding members, interfaces or lambdas
+     * can't be applied to (or removed from) loaded classes. If any affected class can't be re-woven, the change set is
+     * rolled back as a whole
+     * @param changes Changes to apply
+     * @param inst Instrumentation this transformer was registered with (as capable of retransformation)
+     * @throws IllegalArgumentException If an added class is not a graft source
+     * @throws RetransformationException If any affected class could not be re-woven
+     */
+    public synchronized void apply(GraftChangeSet changes, Instrumentation inst) {
+        final Map<String, List<byte[]>> previous = sources;
+        final HashMap<String, List<byte[]>> next = new HashMap<>(previous);
+        final HashSet<String> affected = new HashSet<>();
+
+        final HashMap<String, String> addedTargets = new HashMap<>();
+        for (Map.Entry<String, byte[]> add : changes.getAdded().entrySet()) {
+            final String target = Injector.findGraftTarget(add.getValue());
+            if (target == null)
+                throw new IllegalArgumentException(String.format("Class %s is not a graft source", add.getKey()));
+
+            addedTargets.put(add.getKey(), target);
+        }
+
+        // Remove graft sources which are removed or which have changed target
+        final HashSet<String> removed = new HashSet<>(changes.getRemoved());
+        for (Map.Entry<String, List<byte[]>> entry : previous.entrySet()) {
+            final ArrayList<byte[]> retained = new ArrayList<>(entry.getValue().size());
+            for (byte[] source : entry.getValue()) {
+                final String name = new ClassReader(source).getClassName();
+                if (!removed.contains(name) && entry.getKey().equals(addedTargets.getOrDefault(name, entry.getKey())))
+                    retained.add(source);
+            }
+
+            if (retained.size() != entry.getValue().size()) {
+                affected.add(entry.getKey());
+                if (retained.isEmpty())
+                    next.remove(entry.getKey());
+                else
+                    next.put(entry.getKey(), retained);
+            }
+        }
+
+        // Replace graft sources in place, or append them to the graft sources of their target
+        for (Map.Entry<String, byte[]> add : changes.getAdded().entrySet()) {
+            final String target = addedTargets.get(add.getKey());
+            final ArrayList<byte[]> targetSources = new ArrayList<>(next.getOrDefault(target, Collections.emptyList()));
+
+            int index = 0;
+            while (index < targetSources.size() &&
+                    !add.getKey().equals(new ClassReader(targetSources.get(index)).getClassName()))
+                ++index;
+
+            if (index < targetSources.size())
+                targetSources.set(index, add.getValue());
+            else
+                targetSources.add(add.getValue());
+
+            next.put(target, Collections.unmodifiableList(targetSources));
+            affected.add(target);
+        }
+
+        sources = Collections.unmodifiableMap(next);
+
+        try {
+            retransform(affected, inst);
+        } catch (RuntimeException e) {
+            sources = previous;
+
+            // Classes which could be woven have been changed, so restore all affected classes to their previous state
+            try {
+                retransform(affected, inst);
+            } catch (RuntimeException rollback) {
+                e.addSuppressed(rollback);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Re-weave all loaded classes with the given names in a single retransformation
+     * @param targets Internal names of classes to re-weave
+     * @param inst Instrumentation this transformer was registered with (as capable of retransformation)
+     * @throws RetransformationException If any of the classes could not be re-woven
+     */
+    public void retransform(Set<String> targets, Instrumentation inst) {
+        if (targets.isEmpty())
+            return;
+
+        final ArrayList<Class<?>> loaded = new ArrayList<>();
+        for (Class<?> cls : inst.getAllLoadedClasses())
+            if (targets.contains(cls.getName().replace('.', '/')) && inst.isModifiableClass(cls))
+                loaded.add(cls);
+
+        if (loaded.isEmpty())
+            return;
+
+        final ArrayList<Throwable> failures = new ArrayList<>();
+        retransformFailures.set(failures);
+        try {
+            inst.retransformClasses(loaded.toArray(new Class<?>[0]));
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            throw new RetransformationException(String.format("Could not retransform %s", loaded), e);
+        } finally {
+            retransformFailures.remove();
+        }
+
+        if (!failures.isEmpty()) {
+            final RetransformationException e = new RetransformationException(
+                    String.format("Could not re-weave %d of %s", failures.size(), loaded),
+                    failures.get(0)
+            );
+
+            for (int i = 1; i < failures.size(); ++i)
+                e.addSuppressed(failures.get(i));
+
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] transform(
+            ClassLoader loader,
+            String className,
+            Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain,
+            byte[] classfileBuffer
+    ) {
+        // Hidden classes and lambda forms are unnamed
+        if (className == null)
+            return null;
+
+        final List<byte[]> grafts = sources.get(className);
+
+        // Returning null on retransformation restores the class data as it was before this transformer saw it
+        if (grafts == null)
+            return null;
+
+        final byte[] original = classBeingRedefined == null ?
+                classfileBuffer :
+                originals.getOrDefault(className, classfileBuffer);
+        originals.putIfAbsent(className, original);
+
+        try {
+            final byte[] woven = cache == null ?
+                    Injector.weave(original, grafts, writerFlags) :
+                    Injector.weave(original, grafts, cache, writerFlags);
+
+            failures.remove(className);
+            return woven;
+        } catch (Throwable t) {
+            final List<Throwable> changeSetFailures = retransformFailures.get();
+            if (changeSetFailures != null && classBeingRedefined != null)
+                changeSetFailures.add(t);
+            else {
+                failures.put(className, t);
+
+                final BiConsumer<String, Throwable> handler = errorHandler;
+                if (handler != null)
+                    handler.accept(className, t);
+            }
+
+            return null;
+        }
+    }
+}
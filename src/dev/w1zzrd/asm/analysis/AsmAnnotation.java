@@ -1,28 +1,57 @@
 package dev.w1zzrd.asm.analysis;
 
 import dev.w1zzrd.asm.exception.AnnotationMismatchException;
+import jdk.internal.org.objectweb.asm.Type;
 import jdk.internal.org.objectweb.asm.tree.AnnotationNode;
 import sun.reflect.annotation.AnnotationParser;
 import sun.reflect.annotation.AnnotationType;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Java ASM annotation data representation
  * @param <A> Type of the annotation
  */
 public final class AsmAnnotation<A extends Annotation> {
+    /**
+     * Classes referenced by descriptors in annotations (annotation and enum types). Resolving these is expensive and
+     * the same handful of types is referenced over and over again
+     */
+    private static final ConcurrentHashMap<String, Class<?>> typesByDescriptor = new ConcurrentHashMap<>();
+
+    /**
+     * Constants of enum types referenced in annotations, by name
+     */
+    private static final ClassValue<Map<String, Enum<?>>> enumConstants = new ClassValue<Map<String, Enum<?>>>() {
+        @Override
+        protected Map<String, Enum<?>> computeValue(Class<?> type) {
+            final HashMap<String, Enum<?>> constants = new HashMap<>();
+            for (Object constant : type.getEnumConstants())
+                constants.put(((Enum<?>) constant).name(), (Enum<?>) constant);
+
+            return Collections.unmodifiableMap(constants);
+        }
+    };
+
     private final Class<A> annotationType;
     private final Map<String, Object> entries;
 
+    // Member methods and default values of the annotation type. These are computed once per annotation type by the JDK
+    private final AnnotationType metadata;
+
+    private volatile A materialized;
+
     public AsmAnnotation(Class<A> annotationType, Map<String, Object> entries) {
         this.annotationType = annotationType;
         this.entries = entries;
+        this.metadata = AnnotationType.getInstance(annotationType);
     }
 
     public Class<A> getAnnotationType() {
@@ -34,7 +63,7 @@ public final class AsmAnnotation<A extends Annotation> {
             throw new IllegalArgumentException(String.format("No entry \"%s\" in asm annotation!", name));
         if (hasExplicitEntry(name))
             return (T)entries.get(name);
-        return (T)getValueMethod(name).getDefaultValue();
+        return (T)metadata.memberDefaults().get(name);
     }
 
     public <T> T getEntryOr(String name, T defVal) {
@@ -47,47 +76,50 @@ public final class AsmAnnotation<A extends Annotation> {
     public <T extends Enum<T>> T getEnumEntry(String entryName) {
         if (!hasExplicitEntry(entryName)) {
             if (hasDefaultEntry(entryName))
-                return (T)getValueMethod(entryName).getDefaultValue();
+                return (T)metadata.memberDefaults().get(entryName);
 
             throw new IllegalArgumentException(String.format("No entry \"%s\" in annotation!", entryName));
         }
 
         final String[] value = getEntry(entryName);
-        final String typeName = value[0];
-        final String enumName = value[1];
-
-        Class<T> type;
-        try {
-            type = (Class<T>) Class.forName(typeName.substring(1, typeName.length() - 1).replace('/', '.'));
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        return (T)toEnum(value[0], value[1]);
+    }
 
-        try {
-            T[] values = (T[]) type.getDeclaredMethod("values").invoke(null);
+    /**
+     * Create an instance of the annotation type holding the values of this annotation, such that entries can be read
+     * through the (typed) members of the annotation type. The instance is created once and then reused.<br>
+     * <br>
+     * Note that class-valued entries are resolved (loaded, but not initialized) when the annotation is materialized, so
+     * annotations referring to classes which have yet to be woven should be read through {@link #getEntry(String)}
+     * instead
+     * @return Instance of the annotation type
+     */
+    public A materialize() {
+        A instance = materialized;
+        if (instance == null) {
+            final Map<String, Class<?>> memberTypes = metadata.memberTypes();
+            final HashMap<String, Object> values = new HashMap<>(metadata.memberDefaults());
+
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                final Class<?> memberType = memberTypes.get(entry.getKey());
+                if (memberType == null)
+                    throw new AnnotationMismatchException(String.format(
+                            "Annotation type %s has no member \"%s\"",
+                            annotationType.getName(),
+                            entry.getKey()
+                    ));
+
+                values.put(entry.getKey(), toMemberValue(entry.getValue(), memberType));
+            }
 
-            for (T declaredValue : values)
-                if (declaredValue.name().equals(enumName))
-                    return declaredValue;
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
+            materialized = instance = (A) AnnotationParser.annotationForMap(annotationType, values);
         }
 
-        throw new AnnotationMismatchException(String.format(
-                "Could not find an enum of type %s with name \"%s\"",
-                typeName,
-                enumName
-        ));
+        return instance;
     }
 
     protected Method getValueMethod(String name) {
-        for (Method m : annotationType.getDeclaredMethods())
-            if (m.getName().equals(name)) {
-                m.setAccessible(true);
-                return m;
-            }
-
-        return null;
+        return metadata.members().get(name);
     }
 
     protected boolean hasDefaultEntry(String name) {
@@ -106,22 +138,20 @@ public final class AsmAnnotation<A extends Annotation> {
         if (nodes == null)
             return null;
 
-        for (AnnotationNode node : nodes) {
-            AsmAnnotation<T> annot = getAnnotation(node);
-            if (annot.getAnnotationType().equals(find))
-                return annot;
-        }
+        // Compare descriptors first, so that annotations of other types don't have to be parsed
+        final String desc = Type.getDescriptor(find);
+        for (AnnotationNode node : nodes)
+            if (desc.equals(node.desc)) {
+                AsmAnnotation<T> annot = getAnnotation(node);
+                if (annot.getAnnotationType().equals(find))
+                    return annot;
+            }
 
         return null;
     }
 
     public static <T extends Annotation> AsmAnnotation<T> getAnnotation(AnnotationNode node) {
-        Class<T> cls;
-        try {
-            cls = (Class<T>) Class.forName(node.desc.substring(1, node.desc.length() - 1).replace('/', '.'));
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        Class<T> cls = (Class<T>) forDescriptor(node.desc);
 
         HashMap<String, Object> entries = new HashMap<>();
         if (node.values != null)
@@ -130,4 +160,84 @@ public final class AsmAnnotation<A extends Annotation> {
 
         return new AsmAnnotation<>(cls, entries);
     }
+
+    /**
+     * Convert an entry value, as represented by ASM, to the value of an annotation member
+     * @param value ASM representation of the value
+     * @param memberType Return type of the annotation member
+     * @return Member value
+     */
+    private static Object toMemberValue(Object value, Class<?> memberType) {
+        if (value instanceof Type)
+            return toClass((Type) value);
+
+        if (value instanceof String[])
+            return toEnum(((String[]) value)[0], ((String[]) value)[1]);
+
+        if (value instanceof AnnotationNode)
+            return getAnnotation((AnnotationNode) value).materialize();
+
+        if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            final Class<?> componentType = memberType.getComponentType();
+            final Object array = Array.newInstance(componentType, list.size());
+
+            for (int i = 0; i < list.size(); ++i)
+                Array.set(array, i, toMemberValue(list.get(i), componentType));
+
+            return array;
+        }
+
+        // Primitives and strings are represented as-is
+        return value;
+    }
+
+    private static Class<?> toClass(Type type) {
+        switch (type.getSort()) {
+            case Type.VOID: return void.class;
+            case Type.BOOLEAN: return boolean.class;
+            case Type.CHAR: return char.class;
+            case Type.BYTE: return byte.class;
+            case Type.SHORT: return short.class;
+            case Type.INT: return int.class;
+            case Type.FLOAT: return float.class;
+            case Type.LONG: return long.class;
+            case Type.DOUBLE: return double.class;
+        }
+
+        try {
+            // Array class names are given in descriptor form by Type.getClassName, so use the internal name instead
+            return Class.forName(type.getInternalName().replace('/', '.'), false, AsmAnnotation.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new TypeNotPresentException(type.getClassName(), e);
+        }
+    }
+
+    private static Enum<?> toEnum(String typeName, String enumName) {
+        final Enum<?> value = enumConstants.get(forDescriptor(typeName)).get(enumName);
+
+        if (value == null)
+            throw new AnnotationMismatchException(String.format(
+                    "Could not find an enum of type %s with name \"%s\"",
+                    typeName,
+                    enumName
+            ));
+
+        return value;
+    }
+
+    private static Class<?> forDescriptor(String desc) {
+        Class<?> cls = typesByDescriptor.get(desc);
+        if (cls == null) {
+            try {
+                cls = Class.forName(desc.substring(1, desc.length() - 1).replace('/', '.'));
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+
+            typesByDescriptor.putIfAbsent(desc, cls);
+        }
+
+        return cls;
+    }
 }
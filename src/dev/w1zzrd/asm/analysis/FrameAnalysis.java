@@ -0,0 +1,469 @@
+package dev.w1zzrd.asm.analysis;
+
+import dev.w1zzrd.asm.exception.StateAnalysisException;
+import dev.w1zzrd.asm.signature.DescriptorView;
+import dev.w1zzrd.asm.signature.TypeSignature;
+import jdk.internal.org.objectweb.asm.Opcodes;
+import jdk.internal.org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Result of a whole-method frame state analysis (see {@link FrameState#analyze(MethodNode)}). The operand stack and
+ * local variable types are computed for every instruction in a single forward pass over the control flow graph of the
+ * method, after which the state at any instruction can be queried in constant time.<br>
+ * <br>
+ * Types follow the same conventions as {@link FrameState#getFrameStateAt(AbstractInsnNode, List)}: Cat2 values are
+ * followed by a Top value, unset locals are Top values and objects which have not been initialized yet are marked as
+ * uninitialized. Booleans, bytes, chars and shorts are represented as ints, as they are by the JVM verifier.<br>
+ * <br>
+ * Internally, types are interned into int ids and the frames of all instructions are stored in a single int array, so
+ * the analysis itself does not produce per-instruction garbage. {@link TypeSignature} instances are only created when
+ * frame states are queried.
+ */
+public final class FrameAnalysis {
+    private final String owner;
+    private final InsnList instructions;
+    private final AbstractInsnNode[] insns;
+    private final TryCatchBlockNode[] tryCatchBlocks;
+
+    private final TypeTable types = new TypeTable();
+    private final int maxLocals;
+
+    // Frame state before each instruction is executed, stored as locals followed by the operand stack
+    private int stackCapacity;
+    private int[] frames;
+
+    // Operand stack height before each instruction. Negative for unreachable instructions
+    private final int[] heights;
+
+    // Declared frame state at each FrameNode (with compressed frames expanded)
+    private final int[][] frameStacks;
+    private final int[][] frameLocals;
+
+    FrameAnalysis(String owner, MethodNode method) {
+        this.owner = owner;
+        this.instructions = method.instructions;
+        this.insns = method.instructions.toArray();
+        this.tryCatchBlocks = method.tryCatchBlocks == null ?
+                new TryCatchBlockNode[0] :
+                method.tryCatchBlocks.toArray(new TryCatchBlockNode[0]);
+
+        this.maxLocals = computeMaxLocals(method);
+        this.stackCapacity = Math.max(method.maxStack, 4);
+        this.frames = new int[insns.length * (maxLocals + stackCapacity)];
+        this.heights = new int[insns.length];
+        Arrays.fill(heights, -1);
+
+        this.frameStacks = new int[insns.length][];
+        this.frameLocals = new int[insns.length][];
+
+        final List<Object> initialFrame = getInitialFrame(method);
+
+        decodeFrames(initialFrame);
+
+        if (insns.length != 0)
+            analyze(method, expandTypes(initialFrame, maxLocals));
+    }
+
+    /**
+     * Get the internal name of the class declaring the analyzed method
+     * @return Internal name of the owner
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Check whether or not this analysis may still describe the given method, i.e. whether the method still has the
+     * same amount of instructions and try-catch blocks, starting and ending with the same ones, as when it was
+     * analyzed. This runs in constant time; any other modification must be followed by
+     * {@link FrameState#invalidate(MethodNode)}
+     * @param method Method to check against
+     * @return True if the analysis is still valid for the method, else false
+     */
+    public boolean isValidFor(MethodNode method) {
+        return method.instructions == instructions &&
+                FrameState.matchesSnapshot(insns, method.instructions) &&
+                FrameState.matchesSnapshot(tryCatchBlocks, method.tryCatchBlocks);
+    }
+
+    /**
+     * Check whether or not an instruction can be reached from the start of the method
+     * @param insn Instruction to check
+     * @return True if the instruction is reachable, else false
+     */
+    public boolean isReachable(AbstractInsnNode insn) {
+        return heights[indexOf(insn)] >= 0;
+    }
+
+    /**
+     * Get the amount of operand stack slots in use before the given instruction is executed
+     * @param insn Instruction to get stack height for
+     * @return Stack height, or -1 if the instruction is unreachable
+     */
+    public int getStackHeight(AbstractInsnNode insn) {
+        return heights[indexOf(insn)];
+    }
+
+    /**
+     * Get the operand stack types before the given instruction is executed
+     * @param insn Instruction to get stack types for
+     * @return Stack types, from bottom to top, or null if the instruction is unreachable
+     */
+    public List<TypeSignature> getStackBefore(AbstractInsnNode insn) {
+        final int index = indexOf(insn);
+        return heights[index] < 0 ? null : materialize(stackOffset(index), heights[index]);
+    }
+
+    /**
+     * Get the local variable types before the given instruction is executed
+     * @param insn Instruction to get local types for
+     * @return Local types by slot, or null if the instruction is unreachable
+     */
+    public List<TypeSignature> getLocalsBefore(AbstractInsnNode insn) {
+        final int index = indexOf(insn);
+        return heights[index] < 0 ? null : materialize(localsOffset(index), maxLocals);
+    }
+
+    /**
+     * Get the operand stack types after the given instruction is executed (assuming execution continues)
+     * @param insn Instruction to get stack types for
+     * @return Stack types, from bottom to top, or null if the instruction is unreachable
+     */
+    public Stack<TypeSignature> getStackAfter(AbstractInsnNode insn) {
+        final int index = indexOf(insn);
+        if (heights[index] < 0)
+            return null;
+
+        final SimulatedFrame frame = new SimulatedFrame(types, stackCapacity, new int[maxLocals], null);
+        load(index, frame);
+        step(index, frame);
+
+        final Stack<TypeSignature> stack = new Stack<>();
+        for (int i = 0; i < frame.stackSize; ++i)
+            stack.add(types.toSignature(frame.stack[i]));
+
+        return stack;
+    }
+
+    private int indexOf(AbstractInsnNode insn) {
+        final int index = instructions.indexOf(insn);
+        if (index < 0 || index >= insns.length || insns[index] != insn)
+            throw new IllegalArgumentException("Instruction is not part of the analyzed method");
+
+        return index;
+    }
+
+    private List<TypeSignature> materialize(int offset, int length) {
+        final TypeSignature[] sigs = new TypeSignature[length];
+        for (int i = 0; i < length; ++i)
+            sigs[i] = types.toSignature(frames[offset + i]);
+
+        return Collections.unmodifiableList(Arrays.asList(sigs));
+    }
+
+    private int localsOffset(int index) {
+        return index * (maxLocals + stackCapacity);
+    }
+
+    private int stackOffset(int index) {
+        return index * (maxLocals + stackCapacity) + maxLocals;
+    }
+
+
+    private void analyze(MethodNode method, int[] initialLocals) {
+        final int[] handlerStart = new int[method.tryCatchBlocks == null ? 0 : method.tryCatchBlocks.size()];
+        final int[] handlerEnd = new int[handlerStart.length];
+        final int[] handler = new int[handlerStart.length];
+        final int[][] handlerStack = new int[handlerStart.length][];
+        for (int i = 0; i < handlerStart.length; ++i) {
+            final TryCatchBlockNode block = method.tryCatchBlocks.get(i);
+            handlerStart[i] = instructions.indexOf(block.start);
+            handlerEnd[i] = instructions.indexOf(block.end);
+            handler[i] = instructions.indexOf(block.handler);
+            handlerStack[i] = new int[]{ block.type == null ? TypeTable.THROWABLE : types.internalName(block.type) };
+        }
+
+        final int[] worklist = new int[insns.length];
+        final boolean[] queued = new boolean[insns.length];
+        int pending = 0;
+
+        heights[0] = 0;
+        System.arraycopy(initialLocals, 0, frames, localsOffset(0), maxLocals);
+        worklist[pending++] = 0;
+        queued[0] = true;
+
+        final SimulatedFrame frame = new SimulatedFrame(types, stackCapacity, new int[maxLocals], null);
+        while (pending > 0) {
+            final int index = worklist[--pending];
+            queued[index] = false;
+
+            // Exceptional control flow may leave from any instruction in a protected range
+            for (int i = 0; i < handler.length; ++i)
+                if (index >= handlerStart[i] && index < handlerEnd[i]) {
+                    // Merging may re-stride the frame storage, so locals are copied out first
+                    System.arraycopy(frames, localsOffset(index), frame.locals, 0, maxLocals);
+                    pending = flow(handler[i], frame.locals, handlerStack[i], 1, worklist, queued, pending);
+                }
+
+            load(index, frame);
+            step(index, frame);
+
+            final AbstractInsnNode insn = insns[index];
+            final int opcode = insn.getOpcode();
+
+            // Locals stored by a protected instruction are also visible to its handlers
+            if (opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE)
+                for (int i = 0; i < handler.length; ++i)
+                    if (index >= handlerStart[i] && index < handlerEnd[i])
+                        pending = flow(handler[i], frame.locals, handlerStack[i], 1, worklist, queued, pending);
+
+            if (insn instanceof JumpInsnNode) {
+                pending = flow(((JumpInsnNode) insn).label, frame, worklist, queued, pending);
+                if (opcode == Opcodes.GOTO)
+                    continue;
+            } else if (insn instanceof TableSwitchInsnNode) {
+                pending = flow(((TableSwitchInsnNode) insn).dflt, frame, worklist, queued, pending);
+                for (LabelNode label : ((TableSwitchInsnNode) insn).labels)
+                    pending = flow(label, frame, worklist, queued, pending);
+                continue;
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                pending = flow(((LookupSwitchInsnNode) insn).dflt, frame, worklist, queued, pending);
+                for (LabelNode label : ((LookupSwitchInsnNode) insn).labels)
+                    pending = flow(label, frame, worklist, queued, pending);
+                continue;
+            } else if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW) {
+                continue;
+            } else if (opcode == Opcodes.JSR || opcode == Opcodes.RET) {
+                throw new StateAnalysisException("Subroutines are not supported by frame state analysis");
+            }
+
+            // Fall through to the next instruction
+            if (index + 1 < insns.length)
+                pending = flow(index + 1, frame.locals, frame.stack, frame.stackSize, worklist, queued, pending);
+        }
+    }
+
+    private int flow(LabelNode target, SimulatedFrame frame, int[] worklist, boolean[] queued, int pending) {
+        return flow(instructions.indexOf(target), frame.locals, frame.stack, frame.stackSize, worklist, queued, pending);
+    }
+
+    private int flow(int target, int[] locals, int[] stack, int height, int[] worklist, boolean[] queued, int pending) {
+        if (merge(target, locals, stack, height) && !queued[target]) {
+            worklist[pending++] = target;
+            queued[target] = true;
+        }
+
+        return pending;
+    }
+
+    /**
+     * Merge a frame state into the state before a given instruction
+     * @return True if the state before the instruction changed, else false
+     */
+    private boolean merge(int index, int[] locals, int[] stack, int height) {
+        if (heights[index] < 0) {
+            ensureStackCapacity(height);
+            System.arraycopy(locals, 0, frames, localsOffset(index), maxLocals);
+            System.arraycopy(stack, 0, frames, stackOffset(index), height);
+            heights[index] = height;
+            return true;
+        }
+
+        if (heights[index] != height)
+            throw new StateAnalysisException(String.format(
+                    "Inconsistent operand stack height at instruction %d: %d and %d",
+                    index,
+                    heights[index],
+                    height
+            ));
+
+        boolean changed = false;
+
+        final int localsOffset = localsOffset(index);
+        for (int i = 0; i < maxLocals; ++i) {
+            final int current = frames[localsOffset + i];
+            final int merged = types.merge(current, locals[i]);
+            if (merged != current) {
+                frames[localsOffset + i] = merged;
+                changed = true;
+            }
+        }
+
+        final int stackOffset = stackOffset(index);
+        for (int i = 0; i < height; ++i) {
+            final int current = frames[stackOffset + i];
+            final int merged = types.merge(current, stack[i]);
+            if (merged != current) {
+                frames[stackOffset + i] = merged;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    // Grow the operand stack area of every stored frame. Only happens if the declared max stack is wrong
+    private void ensureStackCapacity(int height) {
+        if (height <= stackCapacity)
+            return;
+
+        final int oldStride = maxLocals + stackCapacity;
+        stackCapacity = Math.max(height, stackCapacity * 2);
+        final int newStride = maxLocals + stackCapacity;
+
+        final int[] grown = new int[insns.length * newStride];
+        for (int i = 0; i < insns.length; ++i)
+            if (heights[i] >= 0)
+                System.arraycopy(frames, i * oldStride, grown, i * newStride, maxLocals + heights[i]);
+
+        frames = grown;
+    }
+
+    private void load(int index, SimulatedFrame frame) {
+        System.arraycopy(frames, localsOffset(index), frame.locals, 0, maxLocals);
+
+        frame.clear();
+        final int offset = stackOffset(index);
+        for (int i = 0; i < heights[index]; ++i)
+            frame.push(frames[offset + i]);
+    }
+
+    /**
+     * Simulate a single instruction
+     * @param index Index of the instruction to simulate
+     * @param frame Frame state before the instruction. Updated to the state after the instruction
+     */
+    private void step(int index, SimulatedFrame frame) {
+        final AbstractInsnNode insn = insns[index];
+
+        if (insn instanceof FrameNode) {
+            // Declared frames are authoritative
+            frame.clear();
+            for (int type : frameStacks[index])
+                frame.push(type);
+
+            Arrays.fill(frame.locals, TypeTable.TOP);
+            System.arraycopy(frameLocals[index], 0, frame.locals, 0, Math.min(maxLocals, frameLocals[index].length));
+            return;
+        }
+
+        FrameState.execute(insn, frame);
+    }
+
+
+    /**
+     * Expand compressed frames. Compressed frames are declared relative to the locals of the previous frame in the
+     * instruction list, with the implicit initial frame of the method as the first frame
+     */
+    private void decodeFrames(List<Object> initialFrame) {
+        List<Object> previous = initialFrame;
+        for (int i = 0; i < insns.length; ++i) {
+            if (!(insns[i] instanceof FrameNode))
+                continue;
+
+            final FrameNode frame = (FrameNode) insns[i];
+            List<Object> frameLocal = previous;
+            List<Object> frameStack = Collections.emptyList();
+
+            switch (frame.type) {
+                case Opcodes.F_NEW:
+                case Opcodes.F_FULL:
+                    frameLocal = frame.local == null ? Collections.emptyList() : frame.local;
+                    frameStack = frame.stack == null ? Collections.emptyList() : frame.stack;
+                    break;
+
+                case Opcodes.F_SAME1:
+                    frameStack = frame.stack;
+                    break;
+
+                case Opcodes.F_APPEND:
+                    frameLocal = new ArrayList<>(previous);
+                    frameLocal.addAll(frame.local);
+                    break;
+
+                case Opcodes.F_CHOP:
+                    // Chopped frames only declare how many locals were removed
+                    frameLocal = new ArrayList<>(previous.subList(0, Math.max(0, previous.size() - frame.local.size())));
+                    break;
+            }
+
+            frameLocals[i] = expandTypes(frameLocal, maxLocals);
+            frameStacks[i] = expandTypes(frameStack, 0);
+            previous = frameLocal;
+        }
+    }
+
+    /**
+     * Expand raw frame types to one type id per slot
+     * @param frameTypes Raw frame types
+     * @param minSize Minimum amount of slots. Slots past the declared types are Top values
+     * @return Frame type ids
+     */
+    private int[] expandTypes(List<Object> frameTypes, int minSize) {
+        int size = 0;
+        final int[] expanded = new int[Math.max(minSize, frameTypes.size() * 2)];
+        for (Object type : frameTypes) {
+            final int id = types.frameType(type, owner);
+            expanded[size++] = id;
+            if (TypeTable.isWide(id))
+                expanded[size++] = TypeTable.topOf(id);
+        }
+
+        return Arrays.copyOf(expanded, Math.max(minSize, size));
+    }
+
+    /**
+     * Get the implicit frame at the start of a method, in raw frame type format
+     */
+    private List<Object> getInitialFrame(MethodNode method) {
+        final ArrayList<Object> frame = new ArrayList<>();
+
+        if ((method.access & Opcodes.ACC_STATIC) == 0)
+            frame.add("<init>".equals(method.name) ? Opcodes.UNINITIALIZED_THIS : owner);
+
+        final DescriptorView desc = new DescriptorView(method.desc);
+        for (int i = 0; i < desc.getArgCount(); ++i)
+            switch (desc.getArgSort(i)) {
+                case 'L':
+                case '[':
+                    frame.add(desc.getArgInternalName(i));
+                    break;
+                case 'J':
+                    frame.add(Opcodes.LONG);
+                    break;
+                case 'D':
+                    frame.add(Opcodes.DOUBLE);
+                    break;
+                case 'F':
+                    frame.add(Opcodes.FLOAT);
+                    break;
+                default:
+                    frame.add(Opcodes.INTEGER);
+                    break;
+            }
+
+        return frame;
+    }
+
+    private int computeMaxLocals(MethodNode method) {
+        int max = Math.max(
+                method.maxLocals,
+                types.argumentSlots(method.desc) + ((method.access & Opcodes.ACC_STATIC) == 0 ? 1 : 0)
+        );
+
+        // Max locals may not have been computed for generated or modified methods
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+            if (insn instanceof VarInsnNode)
+                max = Math.max(max, ((VarInsnNode) insn).var + 2);
+            else if (insn instanceof IincInsnNode)
+                max = Math.max(max, ((IincInsnNode) insn).var + 1);
+
+        return max;
+    }
+}
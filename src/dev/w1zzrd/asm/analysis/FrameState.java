@@ -1,17 +1,20 @@
 package dev.w1zzrd.asm.analysis;
 
 import dev.w1zzrd.asm.exception.StateAnalysisException;
-import dev.w1zzrd.asm.signature.MethodSignature;
 import dev.w1zzrd.asm.signature.TypeSignature;
-import jdk.internal.org.objectweb.asm.Label;
+import jdk.internal.org.objectweb.asm.Handle;
 import jdk.internal.org.objectweb.asm.Opcodes;
 import jdk.internal.org.objectweb.asm.Type;
 import jdk.internal.org.objectweb.asm.tree.*;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.Stack;
+import java.util.WeakHashMap;
 import java.util.function.Predicate;
 
 /**
@@ -20,56 +23,10 @@ import java.util.function.Predicate;
  * Additionally, this could theoretically enable code to be woven in-between original instructions
  */
 public class FrameState {
-    /**
-     * Stack clobbering pushed values after an instruction is invoked.
-     * (See {@link jdk.internal.org.objectweb.asm.Frame#SIZE})<br>
-     * Key:<br>
-     *   ? No change<br>
-     *   X Requires special attention<br>
-     *   L Object<br>
-     *   I int<br>
-     *   J long<br>
-     *   F float<br>
-     *   D double<br>
-     */
-    private static final String STACK_CLOBBER_PUSH =
-            "?LIIIIIIIJJFFFDDIIXXXIJFDLIIIIJJJJFFFFDDDDLLLLIJFDLIII???????????????????????????????????XXXXXX?IJFDIJFDIJFDIJFDIJFDIJFDIJIJIJIJIJIJXJFDIFDIJDIJFIIIIIIII?????????????????????????X?X?XXXXXLLLI?LI??XL????";
-
-    /**
-     * Stack clobbering popped values when an instruction is invoked.
-     * (See {@link jdk.internal.org.objectweb.asm.Frame#SIZE})<br>
-     * Key:<br>
-     *   ? None<br>
-     *   X Requires special attention<br>
-     *   $ Cat1 computational type<br>
-     *   L Object<br>
-     *   I int<br>
-     *   J long<br>
-     *   F float<br>
-     *   D double<br>
-     *   S int/float<br>
-     *   W long/double<br>
-     *   C int, int<br>
-     *   V long, long<br>
-     *   B float, float<br>
-     *   N double, double<br>
-     *   M object, int<br>
-     *   0 object, object<br>
-     *   1 object, int, int<br>
-     *   2 object, int, long<br>
-     *   3 object, int, float<br>
-     *   4 object, int, double<br>
-     *   5 object, int, object<br>
-     *   K Cat1, Cat1<br>
-     * <br>
-     * Cat1 computational types are, according to the JVM8 spec, essentially all 32-bit types (any type that occupies 1 stack slot)
-     */
-    private static final String STACK_CLOBBER_POP  =
-            "??????????????????????????????????????????????MMMMMMMMIJFDLIIIIJJJJFFFFDDDDLLLL12345111$K$$$XXXKCVBNCVBNCVBNCVBNCVBNCVBNCVCVCVCVCVCV?IIIJJJFFFDDDIIIVBBNNIIIIIICCCCCC00?????IJFDL??XLXXXXXX?IILLLLLLXXLL??";
-
+    private static final Map<MethodNode, FrameAnalysis> analyses = new WeakHashMap<>();
+    private static final Map<MethodNode, LocalVariableScopes> scopes = new WeakHashMap<>();
 
     public static Stack<TypeSignature> getFrameStateAt(AbstractInsnNode targetNode, List<LocalVariableNode> locals) {
-        Stack<TypeSignature> stack = new Stack<>();
         AbstractInsnNode first = targetNode, tmp;
 
         // Computation is already O(n), no need to accept first instruction as an argument
@@ -106,12 +63,12 @@ public class FrameState {
                 break;
         }
 
-        int stackSize = 0;
+        final SimulatedFrame frame = new SimulatedFrame(new TypeTable(), 16, null, locals);
 
         // We now have a proposed set of instructions that might run if the instructions were to be called
         // Next, we analyse the stack and locals throughout the execution of these instructions
         while (!simulate.isEmpty()) {
-            updateFrameState(simulate.pop(), stack, locals);
+            updateFrameState(simulate.pop(), frame);
         }
 
         // The stack and locals are now in the state they would be in after the target instruction is hit
@@ -150,36 +107,171 @@ public class FrameState {
          * exhibits the aforementioned behaviour is inherently unpredictable.
          */
 
+        // Types are only materialized once the simulation is done
+        Stack<TypeSignature> stack = new Stack<>();
+        for (int i = 0; i < frame.stackSize; ++i)
+            stack.add(frame.types.toSignature(frame.stack[i]));
+
         return stack;
     }
 
     /**
-     * Get a list of all local variables currently in scope at a given instruction
-     * @param insn Instruction to get local variable scope for
-     * @param allLocals All local variables in method
-     * @return A subset of all local variables such that accessing any value in said subset would not be an error
+     * Get the state of the operand stack after a given instruction has been executed, using a cached whole-method
+     * analysis (see {@link #analyze(MethodNode)})
+     * @param method Method declaring the instruction
+     * @param targetNode Instruction to get the stack state after
+     * @return Operand stack types, from bottom to top
+     * @throws StateAnalysisException If the instruction cannot be reached
      */
-    public static List<LocalVariableNode> localsAt(AbstractInsnNode insn, List<LocalVariableNode> allLocals) {
-        ArrayList<LocalVariableNode> collect = new ArrayList<>();
+    public static Stack<TypeSignature> getFrameStateAt(MethodNode method, AbstractInsnNode targetNode) {
+        final Stack<TypeSignature> stack = analyze(method).getStackAfter(targetNode);
+        if (stack == null)
+            throw new StateAnalysisException("Attempt to get frame state of unreachable instruction");
 
-        for (LocalVariableNode vNode : allLocals) {
-            // Find relative index of start of variable scope
-            Integer start = relativeIndexOf(insn, vNode.start);
+        return stack;
+    }
 
-            // If start of scope could not be found, or it begins after the given instruction, it's not in scope
-            if (start == null || start > 0)
-                continue;
+    /**
+     * Compute the operand stack and local variable types before every instruction in a method in a single forward
+     * pass. Results are cached per method and recomputed once the instruction list of the method has been modified.
+     * The class declaring the method is inferred from the "this" local variable (if declared)
+     * @param method Method to analyze
+     * @return Frame state analysis of the method
+     */
+    public static FrameAnalysis analyze(MethodNode method) {
+        return analyze(method, null);
+    }
 
-            // Find relative index of end of variable scope
-            Integer end = relativeIndexOf(insn, vNode.end);
+    /**
+     * Compute the operand stack and local variable types before every instruction in a method in a single forward
+     * pass. Results are cached per method and recomputed once the instruction list of the method has been modified
+     * @param method Method to analyze
+     * @param owner Internal name of the class declaring the method (or null to infer it)
+     * @return Frame state analysis of the method
+     */
+    public static FrameAnalysis analyze(MethodNode method, String owner) {
+        if (owner == null)
+            owner = inferOwner(method);
+
+        synchronized (analyses) {
+            final FrameAnalysis cached = analyses.get(method);
+            if (cached != null && cached.getOwner().equals(owner) && cached.isValidFor(method))
+                return cached;
+        }
 
-            // If end of scope could not be found, or it ends before the given instruction, it's not in scope
-            if (end == null || end < 0)
-                continue;
+        final FrameAnalysis analysis = new FrameAnalysis(owner, method);
+
+        synchronized (analyses) {
+            analyses.put(method, analysis);
+        }
+
+        return analysis;
+    }
+
+    /**
+     * Discard the cached analysis and local variable scopes of a method. Cached results are only checked against the
+     * size and the first and last instructions, try-catch blocks and local variables of the method, so this is
+     * necessary after any other modification: instructions, frames or local variables modified in place (e.g. by
+     * changing their operands), or replaced in the middle of their list
+     * @param method Method to discard analysis of
+     */
+    public static void invalidate(MethodNode method) {
+        synchronized (analyses) {
+            analyses.remove(method);
+        }
 
-            // Scope starts at (or before) given instruction and ends at (or after) given instruction
-            collect.add(vNode);
+        synchronized (scopes) {
+            scopes.remove(method);
         }
+    }
+
+    /**
+     * Cheaply check whether an instruction list may still consist of the given instructions: it must have the same size,
+     * and start and end with the same instructions. Runs in constant time, so cached results can be looked up on every
+     * query; modifications which retain all three (e.g. {@link InsnList#set}) must be followed by
+     * {@link #invalidate(MethodNode)}
+     */
+    static boolean matchesSnapshot(AbstractInsnNode[] snapshot, InsnList instructions) {
+        return instructions.size() == snapshot.length &&
+                (snapshot.length == 0 ||
+                        (instructions.getFirst() == snapshot[0] && instructions.getLast() == snapshot[snapshot.length - 1]));
+    }
+
+    // Cheaply check whether a (possibly null) list may still consist of the given elements (see above)
+    static boolean matchesSnapshot(Object[] snapshot, List<?> list) {
+        return (list == null ? 0 : list.size()) == snapshot.length &&
+                (snapshot.length == 0 ||
+                        (list.get(0) == snapshot[0] && list.get(snapshot.length - 1) == snapshot[snapshot.length - 1]));
+    }
+
+    private static String inferOwner(MethodNode method) {
+        if ((method.access & Opcodes.ACC_STATIC) == 0 && method.localVariables != null)
+            for (LocalVariableNode var : method.localVariables)
+                if (var.index == 0 && var.desc.startsWith("L"))
+                    return var.desc.substring(1, var.desc.length() - 1);
+
+        return "java/lang/Object";
+    }
+
+    /**
+     * Get the local variable scope index of a method. Indices are cached per method and rebuilt once the instruction
+     * list of the method has been modified
+     * @param method Method to get local variable scopes of
+     * @return Local variable scope index of the method
+     */
+    public static LocalVariableScopes scopes(MethodNode method) {
+        synchronized (scopes) {
+            final LocalVariableScopes cached = scopes.get(method);
+            if (cached != null && cached.isValidFor(method))
+                return cached;
+        }
+
+        final LocalVariableScopes index = new LocalVariableScopes(method);
+
+        synchronized (scopes) {
+            scopes.put(method, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Get a list of all local variables currently in scope at a given instruction, using the cached scope index of the
+     * method declaring the instruction (see {@link #scopes(MethodNode)})
+     * @param method Method declaring the instruction
+     * @param insn Instruction to get local variable scope for
+     * @return A subset of all local variables such that accessing any value in said subset would not be an error
+     */
+    public static List<LocalVariableNode> localsAt(MethodNode method, AbstractInsnNode insn) {
+        return scopes(method).localsAt(insn);
+    }
+
+    /**
+     * Get a list of all local variables currently in scope at a given instruction. Prefer
+     * {@link #localsAt(MethodNode, AbstractInsnNode)} for repeated queries against the same method
+     * @param insn Instruction to get local variable scope for
+     * @param allLocals All local variables in method
+     * @return A subset of all local variables such that accessing any value in said subset would not be an error
+     */
+    public static List<LocalVariableNode> localsAt(AbstractInsnNode insn, List<LocalVariableNode> allLocals) {
+        // Collect the labels at or before the instruction and the labels at or after it. This walks the instruction
+        // list once, regardless of the amount of local variables
+        final Set<AbstractInsnNode> before = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AbstractInsnNode check = insn; check != null; check = check.getPrevious())
+            if (check instanceof LabelNode)
+                before.add(check);
+
+        final Set<AbstractInsnNode> after = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AbstractInsnNode check = insn; check != null; check = check.getNext())
+            if (check instanceof LabelNode)
+                after.add(check);
+
+        ArrayList<LocalVariableNode> collect = new ArrayList<>();
+
+        // Scope starts at (or before) given instruction and ends at (or after) given instruction
+        for (LocalVariableNode vNode : allLocals)
+            if (before.contains(vNode.start) && after.contains(vNode.end))
+                collect.add(vNode);
 
         return collect;
     }
@@ -204,358 +296,276 @@ public class FrameState {
      * Updates the state of a simulated stack frame based on the effects of a given instruction. Effectively simulates
      * the instruction to a certain degree
      * @param instruction Instruction to "simulate"
-     * @param stack Frame stack values
-     * @param locals Frame local variables
+     * @param frame Simulated frame state
      */
-    private static void updateFrameState(
-            AbstractInsnNode instruction,
-            Stack<TypeSignature> stack,
-            List<LocalVariableNode> locals
-    ) {
+    private static void updateFrameState(AbstractInsnNode instruction, SimulatedFrame frame) {
         if (instruction instanceof FrameNode) {
             // Stack values are always updated at a FrameNode
-            stack.clear();
+            frame.clear();
 
             // This is VERY different from getType() declared in AbstractInsnNode
             switch (((FrameNode) instruction).type) {
                 case Opcodes.F_NEW:
                 case Opcodes.F_FULL:
                 case Opcodes.F_SAME: // This feels like undocumented behaviour
-                    // Since this is a full frame, we start anew
-                    //locals.clear();
-
-                    // Ascertain stack types
-                    appendTypes(((FrameNode) instruction).stack, stack, true);
-
-                    // Ascertain local types
-                    //appendTypes(((FrameNode) instruction).local, locals, false);
-                    break;
-
-                case Opcodes.F_APPEND:
-                    //appendTypes(((FrameNode) instruction).local, locals, false);
-                    break;
-
                 case Opcodes.F_SAME1:
-                    appendTypes(((FrameNode) instruction).stack, stack, true);
-                    break;
-
-                case Opcodes.F_CHOP:
-                    /*
-                    List<Object> local = ((FrameNode) instruction).local;
-                    if (local != null)
-                        while (local.size() > locals.size())
-                            locals.remove(locals.size() - 1);
-                     */
+                    // Ascertain stack types
+                    appendTypes(((FrameNode) instruction).stack, frame);
                     break;
             }
-        } else clobberStack(instruction, stack, locals);
+        } else execute(instruction, frame);
     }
 
     /**
-     * Parse and append raw frame type declarations to the end of the given collection
+     * Parse and push raw frame type declarations to the simulated operand stack
      * @param types Raw frame types to parse
-     * @param appendTo Collection to append types to
-     * @param skipNulls Whether or not to short-circuit parsing when a null-valued type is found
+     * @param frame Simulated frame state
      */
-    private static void appendTypes(List<Object> types, List<TypeSignature> appendTo, boolean skipNulls) {
+    private static void appendTypes(List<Object> types, SimulatedFrame frame) {
         if (types == null) return;
 
         for (Object o : types) {
-            if (o == null && skipNulls) break;
-            else if (o == null) appendTo.add(null);
-            else {
-                TypeSignature sig = parseFrameSignature(o);
-                appendTo.add(sig);
-                if (sig.stackFrameElementWith() == 2)
-                    appendTo.add(new TypeSignature(sig.getSig().charAt(0), true));
-            }
+            if (o == null) break;
+
+            // The declaring class is not known here
+            frame.pushValue(frame.types.frameType(o, "java/lang/Object"));
         }
     }
 
     /**
-     * Determine the {@link TypeSignature} of stack/local type declaration
-     * @param o Type to parse
-     * @return {@link TypeSignature} representing the given type declaration
+     * Simulate a given instruction. If the frame tracks local variable types, loads and stores read and update the
+     * tracked types
+     * @param insn Instruction to simulate
+     * @param frame Simulated frame state
      */
-    private static TypeSignature parseFrameSignature(Object o) {
-        if (o instanceof String) // Fully qualified type
-            return new TypeSignature("L"+o+";");
-        else if (o instanceof Integer) { // Primitive
-            switch ((int)o) {
-                case 0: // Top
-                    return new TypeSignature('V', true);
-                case 1: // Int
-                    return new TypeSignature("I");
-                case 2: // Float
-                    return new TypeSignature("F");
-                case 3: // Double
-                    return new TypeSignature("D");
-                case 4: // Long
-                    return new TypeSignature("J");
-                case 5: // Null
-                    return new TypeSignature();
+    static void execute(AbstractInsnNode insn, SimulatedFrame frame) {
+        if (frame.locals != null && insn instanceof VarInsnNode) {
+            final int[] locals = frame.locals;
+            final int var = ((VarInsnNode) insn).var;
+
+            switch (insn.getOpcode()) {
+                case Opcodes.ILOAD:
+                    frame.push(TypeTable.INT);
+                    return;
+
+                case Opcodes.FLOAD:
+                    frame.push(TypeTable.FLOAT);
+                    return;
+
+                case Opcodes.LLOAD:
+                    frame.pushValue(TypeTable.LONG);
+                    return;
+
+                case Opcodes.DLOAD:
+                    frame.pushValue(TypeTable.DOUBLE);
+                    return;
+
+                case Opcodes.ALOAD:
+                    frame.push(locals[var]);
+                    return;
+
+                case Opcodes.LSTORE:
+                case Opcodes.DSTORE:
+                    locals[var + 1] = frame.pop();
+                case Opcodes.ISTORE:
+                case Opcodes.FSTORE:
+                case Opcodes.ASTORE:
+                    locals[var] = frame.pop();
+
+                    // Overwriting the second half of a Cat2 value invalidates it
+                    if (var > 0 && TypeTable.isWide(locals[var - 1]))
+                        locals[var - 1] = TypeTable.TOP;
+                    return;
             }
-        } else if (o instanceof Label) {
-            return new TypeSignature("Ljava/lang/Object;", 0, true);
         }
 
-        throw new StateAnalysisException(String.format("Could not determine type signature for object %s", o));
+        clobberStack(insn, frame);
     }
 
     /**
      * Simulate stack-clobbering effects of invoking a given instruction with a given frame state
      * @param insn Instruction to simulate
-     * @param stack Frame stack values
-     * @param locals Frame local variables
+     * @param frame Simulated frame state
      */
-    private static void clobberStack(
-            AbstractInsnNode insn,
-            List<TypeSignature> stack,
-            List<LocalVariableNode> locals
-    ) {
+    private static void clobberStack(AbstractInsnNode insn, SimulatedFrame frame) {
         // Look, before you go ahead and roast my code, just know that I have a "code first, think later" mentality,
         // so this entire method was essentially throw together and structured this way before I realised what I was
         // doing. If things look like they're implemented in a dumb way, it's probably because it is. There was
         // virtually no thought behind the implementation of this method. Now... let the roasting commence
 
+        final TypeTable types = frame.types;
         final int opcode = insn.getOpcode();
-        if (opcode >= 0 && opcode < STACK_CLOBBER_POP.length()) {
-            // We have an instruction
-            char pushType = STACK_CLOBBER_PUSH.charAt(opcode);
-            char popType = STACK_CLOBBER_POP.charAt(opcode);
-
-            // Yes, the switches in the conditional statements can be collapsed, but this keeps it clean (for now)
-            // TODO: Collapse switch statements
-            if (pushType == 'X' && popType == 'X') {
-                // Complex argument and result
-                // This behaviour is exhibited by 11 instructions in the JVM 8 spec
-                int argCount = 0;
-                MethodSignature msig = null;
-                switch (opcode) {
-                    case Opcodes.DUP2:
-                    case Opcodes.DUP2_X1:
-                    case Opcodes.DUP2_X2:
-                        // Actually just operates on Cat2 values, but whatever
-                        stack.add(stack.size() - (opcode - 90), stack.get(stack.size() - 2));
-                        stack.add(stack.size() - (opcode - 90), stack.get(stack.size() - 2));
-                        break;
-
-                    case Opcodes.INVOKEDYNAMIC:
-                        msig = new MethodSignature(((InvokeDynamicInsnNode) insn).desc);
-                        argCount = -1;
-                    case Opcodes.INVOKEVIRTUAL:
-                    case Opcodes.INVOKESPECIAL:
-                    case Opcodes.INVOKEINTERFACE:
-                        ++argCount;
-                    case Opcodes.INVOKESTATIC:
-                        if (msig == null)
-                            msig = new MethodSignature(((MethodInsnNode)insn).desc);
-                        argCount += msig.getArgCount();
-                        for (int i = 0; i < argCount; ++i) {
-                            // Longs and doubles pop 2 values from the stack
-                            if (i < msig.getArgCount() && msig.getArg(i).stackFrameElementWith() == 2)
-                                stack.remove(stack.size() - 1);
-
-                            // All args pop at least 1 value
-                            stack.remove(stack.size() - 1);
-                        }
-
-                        // For non-void methods, push return to stack
-                        if (!msig.getRet().isVoidType())
-                            stack.add(msig.getRet());
 
-                        break;
+        // Pseudo-instructions (labels, line numbers, frames) don't affect the stack
+        if (opcode < 0 || opcode >= OpcodeTable.SIZE)
+            return;
 
-                    case 196: // WIDE
-                        // WIDE instruction not expected in normal Java programs
-                        // TODO: Implement?
-                        //throw new NotImplementedException();
-                        break; // Ignore instruction, since it wraps the immediately following instruction
-                }
+        final byte pushKind = OpcodeTable.pushKind(opcode);
+        final byte popSlots = OpcodeTable.popSlots(opcode);
 
-            } else if (pushType == 'X') {
-                // Complex result
-                // Technically IINC is classified here, but it can be ignored because this isn't a verification tool;
-                // this just checks clobbering, which IINC does not do
-                switch (opcode) {
-                    case Opcodes.DUP:
-                    case Opcodes.DUP_X1:
-                    case Opcodes.DUP_X2:
-                        stack.add(stack.size() - (opcode - 88), stack.get(stack.size() - 1));
-                        break;
+        if (pushKind != OpcodeTable.COMPLEX && popSlots != OpcodeTable.COMPLEX) {
+            // Trivial-ish argument and result
+            frame.pop(popSlots);
+            trivialPush(insn, pushKind, frame);
+            return;
+        }
 
-                    case Opcodes.LDC:
-                    case 19:  // LDC_W
-                    case 20:  // LDC2_W
-                    {
-                        // I'm not 100% sure this actually works for LDC_W and LDC2_W
-                        LdcInsnNode ldc = (LdcInsnNode) insn;
-                        if (ldc.cst instanceof Type) {
-                            // Type objects in in context will always refer to method references, class literals or
-                            // array literals
-                            int sort = ((Type) ldc.cst).getSort();
-                            switch (sort) {
-                                case Type.OBJECT:
-                                    stack.add(new TypeSignature(((Type) ldc.cst).getDescriptor()));
-                                    break;
-
-                                case Type.METHOD:
-                                    stack.add(new TypeSignature(new MethodSignature(((Type) ldc.cst).getDescriptor())));
-                                    break;
-                            }
-                        } else if (ldc.cst instanceof String){
-                            // Loading a string constant, I think
-                            stack.add(new TypeSignature("Ljava/lang/String;"));
-                        } else {
-                            // Some primitive boxed value
-                            // All the boxed primitives have a public static final field TYPE declaring their unboxed
-                            // type, so we just get the internal name of that field reflectively because I'm lazy
-                            // TODO: Un-reflect-ify this because it can literally be solved with if-elses instead
-                            try {
-                                Class<?> cType = ((Class<?>)ldc.cst.getClass().getField("TYPE").get(null));
-                                char cLetter =
-                                        long.class.equals(cType) ? 'j' :
-                                                boolean.class.equals(cType) ? 'z' :
-                                                        cType.getName().charAt(0);
-
-                                stack.add(new TypeSignature(cLetter, false));
-
-                                // For W pushes, add top value
-                                if (long.class.equals(cType) || double.class.equals(cType))
-                                    stack.add(new TypeSignature(cLetter, true));
-
-                            } catch (NoSuchFieldException | IllegalAccessException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                        break;
-                    }
+        switch (opcode) {
+            // Complex argument and result
+            case Opcodes.DUP2:
+            case Opcodes.DUP2_X1:
+            case Opcodes.DUP2_X2: {
+                // Operates on slots, so this covers both a single Cat2 value and two Cat1 values
+                final int depth = opcode - 90;
+                final int top = frame.peek(0);
+                final int next = frame.peek(1);
+                frame.insert(depth, top);
+                frame.insert(depth + 1, next);
+                break;
+            }
 
-                    case Opcodes.GETFIELD:
-                        stack.remove(stack.size() - 1);
-                    case Opcodes.GETSTATIC:
-                        stack.add(new TypeSignature(((FieldInsnNode) insn).desc));
-                        break;
+            case Opcodes.INVOKEDYNAMIC:
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKESPECIAL:
+            case Opcodes.INVOKEINTERFACE:
+            case Opcodes.INVOKESTATIC: {
+                final String desc = opcode == Opcodes.INVOKEDYNAMIC ?
+                        ((InvokeDynamicInsnNode) insn).desc :
+                        ((MethodInsnNode) insn).desc;
+
+                final int argSlots = types.argumentSlots(desc);
+
+                if (opcode == Opcodes.INVOKESPECIAL && "<init>".equals(((MethodInsnNode) insn).name)) {
+                    // Once a constructor has been invoked, all references to the uninitialized object are
+                    // initialized
+                    final int receiver = frame.peek(argSlots);
+                    frame.pop(argSlots + 1);
+
+                    if (types.isUninitialized(receiver))
+                        frame.replace(receiver, types.initialized(receiver));
+                } else {
+                    // Everything but static and dynamic invocations pop an object reference too
+                    frame.pop(argSlots + (opcode == Opcodes.INVOKESTATIC || opcode == Opcodes.INVOKEDYNAMIC ? 0 : 1));
                 }
-            } else if (popType == 'X') {
-                // Complex argument encompasses 3 instructions
-                switch (opcode) {
-                    case Opcodes.PUTFIELD:
-                    case Opcodes.PUTSTATIC: {
-                        FieldInsnNode put = (FieldInsnNode) insn;
 
-                        // Get type signature
-                        TypeSignature sig = new TypeSignature(put.desc);
+                // For non-void methods, push return to stack
+                final int ret = types.returnType(desc);
+                if (ret != TypeTable.VOID)
+                    frame.pushValue(ret);
 
-                        // If type is Long or Double, we need to pop 2 elements
-                        if (sig.stackFrameElementWith() == 2)
-                            stack.remove(stack.size() - 1);
+                break;
+            }
+
+            case 196: // WIDE
+                // WIDE only widens the operands of the instruction it wraps and never touches the stack itself. ASM
+                // folds it into the wrapped instruction, so it doesn't even appear in instruction lists
+                break;
 
-                        // Pop element from stack
-                        stack.remove(stack.size() - 1);
+            // Complex result
+            // Technically IINC is classified here, but it can be ignored because this isn't a verification tool;
+            // this just checks clobbering, which IINC does not do
+            case Opcodes.DUP:
+            case Opcodes.DUP_X1:
+            case Opcodes.DUP_X2:
+                frame.insert(opcode - 88, frame.peek(0));
+                break;
 
-                        // If this was a non-static instruction, pop object reference too
-                        if (opcode == Opcodes.PUTFIELD)
-                            stack.remove(stack.size() - 1);
+            case Opcodes.SWAP: {
+                final int top = frame.pop();
+                final int next = frame.pop();
+                frame.push(top);
+                frame.push(next);
+                break;
+            }
 
-                        break;
-                    }
+            case Opcodes.LDC:
+            case 19:  // LDC_W
+            case 20:  // LDC2_W
+            {
+                // I'm not 100% sure this actually works for LDC_W and LDC2_W
+                final Object cst = ((LdcInsnNode) insn).cst;
+                if (cst instanceof Integer)
+                    frame.push(TypeTable.INT);
+                else if (cst instanceof Float)
+                    frame.push(TypeTable.FLOAT);
+                else if (cst instanceof Long)
+                    frame.pushValue(TypeTable.LONG);
+                else if (cst instanceof Double)
+                    frame.pushValue(TypeTable.DOUBLE);
+                else if (cst instanceof String)
+                    frame.push(TypeTable.STRING);
+                else if (cst instanceof Type)
+                    // Type constants load either a class literal or a method type
+                    frame.push(((Type) cst).getSort() == Type.METHOD ? TypeTable.METHOD_TYPE : TypeTable.CLASS);
+                else if (cst instanceof Handle)
+                    frame.push(TypeTable.METHOD_HANDLE);
+                else
+                    throw new StateAnalysisException(String.format("Unknown constant type: %s", cst.getClass().getName()));
+                break;
+            }
 
-                    case Opcodes.MULTIANEWARRAY: {
-                        MultiANewArrayInsnNode marray = (MultiANewArrayInsnNode) insn;
+            case Opcodes.GETFIELD:
+                frame.pop();
+            case Opcodes.GETSTATIC:
+                frame.pushValue(types.descriptor(((FieldInsnNode) insn).desc));
+                break;
 
-                        // Pop a value for each dimension
-                        for (int i = 0; i < marray.dims; ++i)
-                            stack.remove(stack.size() - 1);
+            // Complex argument
+            case Opcodes.PUTFIELD:
+            case Opcodes.PUTSTATIC:
+                // If type is Long or Double, we need to pop 2 elements
+                frame.pop(TypeTable.isWide(types.descriptor(((FieldInsnNode) insn).desc)) ? 2 : 1);
 
-                        stack.add(new TypeSignature(marray.desc));
-                        break;
-                    }
-                }
-            } else {
-                // Trivial-ish argument and result
-                trivialPop(insn, popType, stack, locals);
-                trivialPush(insn, pushType, stack, locals);
-            }
-        }
-    }
+                // If this was a non-static instruction, pop object reference too
+                if (opcode == Opcodes.PUTFIELD)
+                    frame.pop();
+                break;
 
+            case Opcodes.MULTIANEWARRAY: {
+                MultiANewArrayInsnNode marray = (MultiANewArrayInsnNode) insn;
 
-    /**
-     * Simulate a "trivial" instruction which pops values from the operand stack
-     * @param insn Instruction to simulate pushing for
-     * @param type Classification of push type
-     * @param stack Simulated operand stand types
-     * @param locals Simulated frame local types
-     */
-    private static void trivialPop(AbstractInsnNode insn, char type, List<TypeSignature> stack, List<LocalVariableNode> locals) {
-        // TODO: Fix type naming scheme; this is actually going to make me cry
-        // Yes, the fall-throughs are very intentional
-        switch (type) {
-            // Pops 4 values
-            case 'V':
-            case 'N':
-            case '2':
-            case '4':
-                stack.remove(stack.size() - 1);
-
-            // Pops 3 values
-            case '1':
-            case '3':
-            case '5':
-                stack.remove(stack.size() - 1);
-
-            // Pops 2 values
-            case 'D':
-            case 'J':
-            case 'W':
-            case 'C':
-            case 'B':
-            case 'M':
-            case '0':
-            case 'K':
-                stack.remove(stack.size() - 1);
-
-            // Pops 1 value
-            case 'I':
-            case 'F':
-            case 'L':
-            case 'S':
-            case '$':
-                stack.remove(stack.size() - 1);
+                // Pop a value for each dimension
+                frame.pop(marray.dims);
+                frame.push(types.descriptor(marray.desc));
                 break;
+            }
         }
     }
 
     /**
      * Simulate a "trivial" instruction which pushes values to the operand stack
      * @param insn Instruction to simulate pushing for
-     * @param type Classification of push type
-     * @param stack Simulated operand stand types
-     * @param locals Simulated frame local types
+     * @param kind Kind of value pushed (see {@link OpcodeTable#pushKind(int)})
+     * @param frame Simulated frame state
      */
-    private static void trivialPush(AbstractInsnNode insn, char type, List<TypeSignature> stack, List<LocalVariableNode> locals) {
+    private static void trivialPush(AbstractInsnNode insn, byte kind, SimulatedFrame frame) {
+        final TypeTable types = frame.types;
+
         // Pushing is a bit more tricky than popping because we have to resolve types (kind of)
-        switch (type) {
-            case 'I':
-            case 'F':
-                // Push single-entry primitive
-                stack.add(new TypeSignature(Character.toString(type)));
+        switch (kind) {
+            case OpcodeTable.PUSH_INT:
+                frame.push(TypeTable.INT);
+                break;
+
+            case OpcodeTable.PUSH_FLOAT:
+                frame.push(TypeTable.FLOAT);
                 break;
 
-            case 'D':
-            case 'J':
+            case OpcodeTable.PUSH_DOUBLE:
                 // Push two-entry primitive (value + top)
-                stack.add(new TypeSignature(Character.toString(type)));
-                stack.add(new TypeSignature(type, true));
+                frame.pushValue(TypeTable.DOUBLE);
                 break;
 
-            case 'L':
+            case OpcodeTable.PUSH_LONG:
+                frame.pushValue(TypeTable.LONG);
+                break;
+
+            case OpcodeTable.PUSH_OBJECT:
                 // Push an object type to the stack
                 switch (insn.getOpcode()) {
                     case Opcodes.ACONST_NULL:
                         // Null type, I guess
-                        stack.add(new TypeSignature());
+                        frame.push(TypeTable.NULL);
                         break;
 
                     case Opcodes.ALOAD:
@@ -564,7 +574,7 @@ public class FrameState {
                     case 44:  // ALOAD_2
                     case 45:  // ALOAD_3
                         // Push a local variable to the stack
-                        Optional<LocalVariableNode> targetVar = localsAt(insn, locals)
+                        Optional<LocalVariableNode> targetVar = localsAt(insn, frame.scope)
                                 .stream()
                                 .filter(it -> it.index == ((VarInsnNode) insn).var)
                                 .findFirst();
@@ -575,50 +585,43 @@ public class FrameState {
                                     insn.getOpcode()
                             ));
 
-                        stack.add(new TypeSignature(targetVar.get().desc));
+                        frame.push(types.descriptor(targetVar.get().desc));
                         break;
 
                     case Opcodes.AALOAD:
                         // Read an array element to the stack
-                        stack.remove(stack.size() - 1); // Pop array index
+                        frame.pop(); // Pop array index
 
                         // Pop array and push value
-                        // This assumes that the popped value is an array (as it should be)
-                        stack.add(stack.remove(stack.size() - 1).getArrayElementType());
+                        frame.push(types.elementOf(frame.pop()));
                         break;
 
                     case Opcodes.NEW:
-                        // Allocate a new object (should really be marked as uninitialized, but meh)
-                        // We'll burn that bridge when we get to it or something...
-                        stack.add(new TypeSignature(String.format("L%s;", ((TypeInsnNode) insn).desc)));
+                        // Allocate a new object, which is uninitialized until its constructor has been invoked
+                        frame.push(types.uninitialized(types.internalName(((TypeInsnNode) insn).desc)));
                         break;
 
                     case Opcodes.NEWARRAY:
                         // Allocate a new, 1-dimensional, primitive array
-                        stack.remove(stack.size() - 1);
-                        stack.add(new TypeSignature(
-                                Character.toString("ZCFDBSIJ".charAt(((IntInsnNode) insn).operand - 4)),
-                                1,
-                                false
-                        ));
+                        frame.pop();
+                        frame.push(types.primitiveArray(((IntInsnNode) insn).operand));
                         break;
 
                     case Opcodes.ANEWARRAY:
                         // Allocate a new, 1-dimensional, object array
-                        stack.remove(stack.size() - 1);
-                        stack.add(new TypeSignature(((TypeInsnNode) insn).desc, 1, false));
+                        frame.pop();
+                        frame.push(types.arrayOf(((TypeInsnNode) insn).desc));
                         break;
 
                     case Opcodes.CHECKCAST:
                         // Cast an object to another type
-                        stack.remove(stack.size() - 1);
-                        stack.add(new TypeSignature(((TypeInsnNode) insn).desc));
+                        frame.pop();
+                        frame.push(types.internalName(((TypeInsnNode) insn).desc));
                         break;
                 }
         }
     }
 
-
     /**
      * Purely for debugging purposes. This method generates a collection of instruction names that match the given
      * functional stack-clobbering properties.<br>
@@ -633,8 +636,7 @@ public class FrameState {
      * @param complexPush Whether or not the instructions should have non-trivial results generated by execution
      * @param complexPop Whether or not the instructions should have non-trivial argument requirements for execution
      * @param insnP An instruction-code specific predicate for fine-tuned filtering
-     * @return A collection of instruction names matching the given functional properties. For instructions named
-     * "Opcode<...>", please refer to the comments in {@link Opcodes} as well as the official JVM specification
+     * @return A collection of instruction names matching the given functional properties
      * @see <a href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-6.html#jvms-6.5">JVM8 instructions spec</a>
      */
     private static List<String> getOpsByComplexity(
@@ -642,73 +644,14 @@ public class FrameState {
             boolean complexPop,
             Predicate<Integer> insnP
     ) {
-        ArrayList<Integer> opcodes = new ArrayList<>();
-
-        for (int i = 0; i < FrameState.STACK_CLOBBER_PUSH.length(); ++i)
-            if ((FrameState.STACK_CLOBBER_PUSH.charAt(i) == 'X' == complexPush) &&
-                    (FrameState.STACK_CLOBBER_POP.charAt(i) == 'X' == complexPop))
-                opcodes.add(i);
-
-        return opcodes.stream().filter(insnP == null ? it -> true : insnP).map(instrID -> {
-            try {
-                return java.util.Arrays
-                        .stream(Opcodes.class.getFields())
-                        .filter(field -> {
-                            try {
-                                return java.lang.reflect.Modifier.isStatic(field.getModifiers()) &&
-                                        !field.getName().startsWith("ACC_") &&
-                                        !field.getName().startsWith("T_") &&
-                                        !field.getName().startsWith("H_") &&
-                                        !field.getName().startsWith("F_") &&
-                                        !field.getName().startsWith("V1_") &&
-                                        field.getType().equals(int.class) &&
-                                        field.get(null).equals(instrID);
-                            } catch (Throwable t) {
-                                throw new RuntimeException(t);
-                            }
-                        })
-                        .map(Field::getName)
-                        .findFirst()
-                        .orElse(String.format("Opcode<%d>", instrID));
-            } catch(Throwable t) {
-                throw new RuntimeException(t);
-            }
-        }).collect(java.util.stream.Collectors.toList());
-    }
-
-
-    /**
-     * Find the index of a given instruction relative to a starting point
-     * @param current Starting point for search
-     * @param find Instruction to find
-     * @return Negative values for instructions previous to the current instruction, positive values for instructions
-     * after the current instruction. Null if instruction could not be found
-     */
-    private static Integer relativeIndexOf(
-            AbstractInsnNode current,
-            AbstractInsnNode find
-    ) {
-        // Check backward
-        int idx = 0;
-        AbstractInsnNode check = current;
-        while (check != null) {
-            if (check == find)
-                return idx;
-            --idx;
-            check = check.getPrevious();
-        }
+        ArrayList<String> opcodes = new ArrayList<>();
 
-        // Check forward
-        idx = 1;
-        check = current.getNext();
-        while (check != null) {
-            if (check == find)
-                return idx;
-            ++idx;
-            check = check.getNext();
-        }
+        for (int i = 0; i < OpcodeTable.SIZE; ++i)
+            if ((OpcodeTable.pushKind(i) == OpcodeTable.COMPLEX) == complexPush &&
+                    (OpcodeTable.popSlots(i) == OpcodeTable.COMPLEX) == complexPop &&
+                    (insnP == null || insnP.test(i)))
+                opcodes.add(OpcodeTable.mnemonic(i));
 
-        // No match
-        return null;
+        return opcodes;
     }
 }
@@ -0,0 +1,210 @@
+package dev.w1zzrd.asm.analysis;
+
+import jdk.internal.org.objectweb.asm.tree.AbstractInsnNode;
+import jdk.internal.org.objectweb.asm.tree.InsnList;
+import jdk.internal.org.objectweb.asm.tree.LocalVariableNode;
+import jdk.internal.org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the scopes of the local variables declared by a method (see {@link FrameState#scopes(MethodNode)}).<br>
+ * <br>
+ * Instructions are identified by their ordinal in the instruction list and the scope of each local variable is stored
+ * as an interval of ordinals in an interval tree, so finding the locals in scope at an instruction takes
+ * O(log n + k) time rather than a walk of the instruction list per local variable. The locals in scope at every
+ * instruction of the method can also be computed in a single sweep (see {@link #localsAtEach()}).<br>
+ * <br>
+ * Like {@link FrameState#localsAt(AbstractInsnNode, List)}, a local variable is in scope at an instruction if its
+ * start label is at or before the instruction and its end label is at or after the instruction. Local variables are
+ * always returned in declaration order.
+ */
+public final class LocalVariableScopes {
+    private final InsnList instructions;
+    private final AbstractInsnNode[] insns;
+
+    private final LocalVariableNode[] declared;
+
+    // Interval tree over the scopes, stored as an implicit balanced search tree over scopes sorted by their start.
+    // The subtree of the range [lo, hi) is rooted at the middle of the range
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] order;
+    private final int[] maxEnds;
+
+    private volatile List<List<LocalVariableNode>> localsAtEach;
+
+    LocalVariableScopes(MethodNode method) {
+        this.instructions = method.instructions;
+        this.insns = method.instructions.toArray();
+
+        final List<LocalVariableNode> locals = method.localVariables == null ?
+                Collections.emptyList() :
+                method.localVariables;
+
+        // Local variables whose scope labels aren't part of the method are never in scope
+        final ArrayList<Integer> valid = new ArrayList<>(locals.size());
+        final int[] startOrdinals = new int[locals.size()];
+        final int[] endOrdinals = new int[locals.size()];
+        for (int i = 0; i < locals.size(); ++i) {
+            startOrdinals[i] = ordinalOrNegative(locals.get(i).start);
+            endOrdinals[i] = ordinalOrNegative(locals.get(i).end);
+
+            if (startOrdinals[i] >= 0 && endOrdinals[i] >= startOrdinals[i])
+                valid.add(i);
+        }
+
+        valid.sort((a, b) -> Integer.compare(startOrdinals[a], startOrdinals[b]));
+
+        this.declared = locals.toArray(new LocalVariableNode[0]);
+        this.starts = new int[valid.size()];
+        this.ends = new int[valid.size()];
+        this.order = new int[valid.size()];
+        this.maxEnds = new int[valid.size()];
+
+        for (int i = 0; i < valid.size(); ++i) {
+            order[i] = valid.get(i);
+            starts[i] = startOrdinals[order[i]];
+            ends[i] = endOrdinals[order[i]];
+        }
+
+        buildMaxEnds(0, order.length);
+    }
+
+    /**
+     * Check whether or not this index may still describe the given method, i.e. whether the method still has the same
+     * amount of instructions and local variables, starting and ending with the same ones, as when the index was built.
+     * This runs in constant time; any other modification must be followed by {@link FrameState#invalidate(MethodNode)}
+     * @param method Method to check against
+     * @return True if the index is still valid for the method, else false
+     */
+    public boolean isValidFor(MethodNode method) {
+        return method.instructions == instructions &&
+                FrameState.matchesSnapshot(insns, method.instructions) &&
+                FrameState.matchesSnapshot(declared, method.localVariables);
+    }
+
+    /**
+     * Get the ordinal of an instruction in the instruction list of the indexed method
+     * @param insn Instruction to get ordinal of
+     * @return Index of the instruction in the instruction list
+     */
+    public int ordinalOf(AbstractInsnNode insn) {
+        final int index = ordinalOrNegative(insn);
+        if (index < 0)
+            throw new IllegalArgumentException("Instruction is not part of the indexed method");
+
+        return index;
+    }
+
+    /**
+     * Get a list of all local variables in scope at a given instruction
+     * @param insn Instruction to get local variable scope for
+     * @return Local variables in scope, in declaration order
+     */
+    public List<LocalVariableNode> localsAt(AbstractInsnNode insn) {
+        if (localsAtEach != null)
+            return localsAtEach.get(ordinalOf(insn));
+
+        final int ordinal = ordinalOf(insn);
+        final BitSet found = new BitSet(declared.length);
+        collect(0, order.length, ordinal, found);
+
+        return toList(found);
+    }
+
+    /**
+     * Get the local variables in scope at every instruction of the indexed method. The result is computed in a single
+     * sweep over the instruction ordinals the first time it is requested. Instructions with identical scopes share the
+     * same list
+     * @return Lists of local variables in scope, indexed by instruction ordinal
+     */
+    public synchronized List<List<LocalVariableNode>> localsAtEach() {
+        if (localsAtEach != null)
+            return localsAtEach;
+
+        // Scopes sorted by the ordinal they end at
+        final Integer[] byEnd = new Integer[order.length];
+        for (int i = 0; i < byEnd.length; ++i)
+            byEnd[i] = i;
+        Arrays.sort(byEnd, (a, b) -> Integer.compare(ends[a], ends[b]));
+
+        final BitSet active = new BitSet(declared.length);
+        final ArrayList<List<LocalVariableNode>> result = new ArrayList<>(insns.length);
+        List<LocalVariableNode> current = Collections.emptyList();
+
+        int nextStart = 0, nextEnd = 0;
+        for (int ordinal = 0; ordinal < insns.length; ++ordinal) {
+            boolean changed = false;
+
+            for (; nextStart < starts.length && starts[nextStart] == ordinal; ++nextStart) {
+                active.set(order[nextStart]);
+                changed = true;
+            }
+
+            // Scopes are inclusive of the end label
+            for (; nextEnd < byEnd.length && ends[byEnd[nextEnd]] < ordinal; ++nextEnd) {
+                active.clear(order[byEnd[nextEnd]]);
+                changed = true;
+            }
+
+            if (changed)
+                current = toList(active);
+
+            result.add(current);
+        }
+
+        return localsAtEach = Collections.unmodifiableList(result);
+    }
+
+    private int ordinalOrNegative(AbstractInsnNode insn) {
+        final int index = instructions.indexOf(insn);
+        return index < 0 || index >= insns.length || insns[index] != insn ? -1 : index;
+    }
+
+    private int buildMaxEnds(int lo, int hi) {
+        if (lo >= hi)
+            return -1;
+
+        final int mid = (lo + hi) >>> 1;
+        maxEnds[mid] = Math.max(ends[mid], Math.max(buildMaxEnds(lo, mid), buildMaxEnds(mid + 1, hi)));
+        return maxEnds[mid];
+    }
+
+    private void collect(int lo, int hi, int ordinal, BitSet found) {
+        if (lo >= hi)
+            return;
+
+        final int mid = (lo + hi) >>> 1;
+
+        // No scope in this subtree reaches the ordinal
+        if (maxEnds[mid] < ordinal)
+            return;
+
+        collect(lo, mid, ordinal, found);
+
+        // Scopes to the right of a scope starting after the ordinal also start after the ordinal
+        if (starts[mid] > ordinal)
+            return;
+
+        if (ends[mid] >= ordinal)
+            found.set(order[mid]);
+
+        collect(mid + 1, hi, ordinal, found);
+    }
+
+    private List<LocalVariableNode> toList(BitSet indices) {
+        if (indices.isEmpty())
+            return Collections.emptyList();
+
+        final ArrayList<LocalVariableNode> locals = new ArrayList<>(indices.cardinality());
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1))
+            locals.add(declared[i]);
+
+        return Collections.unmodifiableList(locals);
+    }
+}
@@ -0,0 +1,198 @@
+package dev.w1zzrd.asm.analysis;
+
+/**
+ * Immutable per-opcode metadata used when simulating instructions. The stack effect of every opcode is decoded once
+ * (when the class is initialized) from the classification strings below into primitive arrays, such that simulating
+ * an instruction only requires array lookups.
+ */
+final class OpcodeTable {
+    /**
+     * Amount of opcodes defined by the JVM 8 instruction set (see {@link #MNEMONICS})
+     */
+    static final int SIZE = 202;
+
+    /**
+     * Marker for stack effects which depend on the operands of the instruction, i.e. effects which require special
+     * attention
+     */
+    static final byte COMPLEX = -1;
+
+    // Kinds of values pushed by an instruction
+    static final byte PUSH_NONE = 0;
+    static final byte PUSH_INT = 1;
+    static final byte PUSH_FLOAT = 2;
+    static final byte PUSH_LONG = 3;
+    static final byte PUSH_DOUBLE = 4;
+    static final byte PUSH_OBJECT = 5;
+
+    /**
+     * Stack clobbering pushed values after an instruction is invoked.
+     * (See {@link jdk.internal.org.objectweb.asm.Frame#SIZE})<br>
+     * Key:<br>
+     *   ? No change<br>
+     *   X Requires special attention<br>
+     *   L Object<br>
+     *   I int<br>
+     *   J long<br>
+     *   F float<br>
+     *   D double<br>
+     */
+    private static final String STACK_CLOBBER_PUSH =
+            "?LIIIIIIIJJFFFDDIIXXXIJFDLIIIIJJJJFFFFDDDDLLLLIJFDLIII???????????????????????????????????XXXXXXXIJFDIJFDIJFDIJFDIJFDIJFDIJIJIJIJIJIJXJFDIFDIJDIJFIIIIIIII?????????????????????????X?X?XXXXXLLLI?LI??XL????";
+
+    /**
+     * Stack clobbering popped values when an instruction is invoked.
+     * (See {@link jdk.internal.org.objectweb.asm.Frame#SIZE})<br>
+     * Key:<br>
+     *   ? None<br>
+     *   X Requires special attention<br>
+     *   $ Cat1 computational type<br>
+     *   L Object<br>
+     *   I int<br>
+     *   J long<br>
+     *   F float<br>
+     *   D double<br>
+     *   S int/float<br>
+     *   W long/double<br>
+     *   C int, int<br>
+     *   V long, long<br>
+     *   B float, float<br>
+     *   N double, double<br>
+     *   M object, int<br>
+     *   0 object, object<br>
+     *   1 object, int, int<br>
+     *   2 object, int, long<br>
+     *   3 object, int, float<br>
+     *   4 object, int, double<br>
+     *   5 object, int, object<br>
+     *   6 long, int<br>
+     *   K Cat1, Cat1<br>
+     * <br>
+     * Cat1 computational types are, according to the JVM8 spec, essentially all 32-bit types (any type that occupies 1 stack slot)
+     */
+    private static final String STACK_CLOBBER_POP  =
+            "??????????????????????????????????????????????MMMM?MMMIJFDLIIIIJJJJFFFFDDDDLLLL12345111$K$$$XXX?CVBNCVBNCVBNCVBNCVBNIJFDC6C6C6CVCVCV?IIIJJJFFFDDDIIIVBBNNIIIIIICCCCCC00???IIIJFDL??XLXXXXXX???LL?LLLXXLL??";
+
+    private static final String[] MNEMONICS = {
+            "NOP", "ACONST_NULL", "ICONST_M1", "ICONST_0", "ICONST_1", "ICONST_2", "ICONST_3", "ICONST_4", "ICONST_5",
+            "LCONST_0", "LCONST_1", "FCONST_0", "FCONST_1", "FCONST_2", "DCONST_0", "DCONST_1", "BIPUSH", "SIPUSH",
+            "LDC", "LDC_W", "LDC2_W", "ILOAD", "LLOAD", "FLOAD", "DLOAD", "ALOAD", "ILOAD_0", "ILOAD_1", "ILOAD_2",
+            "ILOAD_3", "LLOAD_0", "LLOAD_1", "LLOAD_2", "LLOAD_3", "FLOAD_0", "FLOAD_1", "FLOAD_2", "FLOAD_3",
+            "DLOAD_0", "DLOAD_1", "DLOAD_2", "DLOAD_3", "ALOAD_0", "ALOAD_1", "ALOAD_2", "ALOAD_3", "IALOAD",
+            "LALOAD", "FALOAD", "DALOAD", "AALOAD", "BALOAD", "CALOAD", "SALOAD", "ISTORE", "LSTORE", "FSTORE",
+            "DSTORE", "ASTORE", "ISTORE_0", "ISTORE_1", "ISTORE_2", "ISTORE_3", "LSTORE_0", "LSTORE_1", "LSTORE_2",
+            "LSTORE_3", "FSTORE_0", "FSTORE_1", "FSTORE_2", "FSTORE_3", "DSTORE_0", "DSTORE_1", "DSTORE_2",
+            "DSTORE_3", "ASTORE_0", "ASTORE_1", "ASTORE_2", "ASTORE_3", "IASTORE", "LASTORE", "FASTORE", "DASTORE",
+            "AASTORE", "BASTORE", "CASTORE", "SASTORE", "POP", "POP2", "DUP", "DUP_X1", "DUP_X2", "DUP2", "DUP2_X1",
+            "DUP2_X2", "SWAP", "IADD", "LADD", "FADD", "DADD", "ISUB", "LSUB", "FSUB", "DSUB", "IMUL", "LMUL", "FMUL",
+            "DMUL", "IDIV", "LDIV", "FDIV", "DDIV", "IREM", "LREM", "FREM", "DREM", "INEG", "LNEG", "FNEG", "DNEG",
+            "ISHL", "LSHL", "ISHR", "LSHR", "IUSHR", "LUSHR", "IAND", "LAND", "IOR", "LOR", "IXOR", "LXOR", "IINC",
+            "I2L", "I2F", "I2D", "L2I", "L2F", "L2D", "F2I", "F2L", "F2D", "D2I", "D2L", "D2F", "I2B", "I2C", "I2S",
+            "LCMP", "FCMPL", "FCMPG", "DCMPL", "DCMPG", "IFEQ", "IFNE", "IFLT", "IFGE", "IFGT", "IFLE", "IF_ICMPEQ",
+            "IF_ICMPNE", "IF_ICMPLT", "IF_ICMPGE", "IF_ICMPGT", "IF_ICMPLE", "IF_ACMPEQ", "IF_ACMPNE", "GOTO", "JSR",
+            "RET", "TABLESWITCH", "LOOKUPSWITCH", "IRETURN", "LRETURN", "FRETURN", "DRETURN", "ARETURN", "RETURN",
+            "GETSTATIC", "PUTSTATIC", "GETFIELD", "PUTFIELD", "INVOKEVIRTUAL", "INVOKESPECIAL", "INVOKESTATIC",
+            "INVOKEINTERFACE", "INVOKEDYNAMIC", "NEW", "NEWARRAY", "ANEWARRAY", "ARRAYLENGTH", "ATHROW", "CHECKCAST",
+            "INSTANCEOF", "MONITORENTER", "MONITOREXIT", "WIDE", "MULTIANEWARRAY", "IFNULL", "IFNONNULL", "GOTO_W",
+            "JSR_W"
+    };
+
+    private static final byte[] PUSH_KINDS = new byte[SIZE];
+    private static final byte[] POP_SLOTS = new byte[SIZE];
+
+    static {
+        for (int opcode = 0; opcode < SIZE; ++opcode) {
+            PUSH_KINDS[opcode] = decodePushKind(STACK_CLOBBER_PUSH.charAt(opcode));
+            POP_SLOTS[opcode] = decodePopSlots(STACK_CLOBBER_POP.charAt(opcode));
+        }
+    }
+
+    /**
+     * Get the kind of value pushed by an instruction
+     * @param opcode Opcode of the instruction
+     * @return One of the PUSH_ constants, or {@link #COMPLEX}
+     */
+    static byte pushKind(int opcode) {
+        return PUSH_KINDS[opcode];
+    }
+
+    /**
+     * Get the amount of operand stack slots popped by an instruction
+     * @param opcode Opcode of the instruction
+     * @return Slot count, or {@link #COMPLEX}
+     */
+    static byte popSlots(int opcode) {
+        return POP_SLOTS[opcode];
+    }
+
+    /**
+     * Get the name of an instruction, as given by the JVM specification
+     * @param opcode Opcode of the instruction
+     * @return Upper-case mnemonic of the instruction
+     */
+    static String mnemonic(int opcode) {
+        return MNEMONICS[opcode];
+    }
+
+    private static byte decodePushKind(char type) {
+        switch (type) {
+            case 'X':
+                return COMPLEX;
+            case 'I':
+                return PUSH_INT;
+            case 'F':
+                return PUSH_FLOAT;
+            case 'J':
+                return PUSH_LONG;
+            case 'D':
+                return PUSH_DOUBLE;
+            case 'L':
+                return PUSH_OBJECT;
+            default:
+                return PUSH_NONE;
+        }
+    }
+
+    private static byte decodePopSlots(char type) {
+        switch (type) {
+            case 'X':
+                return COMPLEX;
+
+            // Pops 4 values
+            case 'V':
+            case 'N':
+            case '2':
+            case '4':
+                return 4;
+
+            // Pops 3 values
+            case '1':
+            case '3':
+            case '5':
+            case '6':
+                return 3;
+
+            // Pops 2 values
+            case 'D':
+            case 'J':
+            case 'W':
+            case 'C':
+            case 'B':
+            case 'M':
+            case '0':
+            case 'K':
+                return 2;
+
+            // Pops 1 value
+            case 'I':
+            case 'F':
+            case 'L':
+            case 'S':
+            case '$':
+                return 1;
+
+            default:
+                return 0;
+        }
+    }
+}
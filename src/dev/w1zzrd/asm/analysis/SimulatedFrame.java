@@ -0,0 +1,101 @@
+package dev.w1zzrd.asm.analysis;
+
+import jdk.internal.org.objectweb.asm.tree.LocalVariableNode;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mutable frame state used while simulating instructions. Values are type ids from a {@link TypeTable}, with Cat2
+ * values occupying two slots. The same instance is reused for every simulated instruction, so simulation does not
+ * allocate unless the operand stack has to grow.
+ */
+final class SimulatedFrame {
+    final TypeTable types;
+
+    int[] stack;
+    int stackSize = 0;
+
+    /**
+     * Local variable types by slot, or null if locals aren't tracked. Untracked local reference types are resolved
+     * through the declared local variable scopes instead
+     */
+    int[] locals;
+
+    /**
+     * Declared local variables, used to resolve local types if locals aren't tracked
+     */
+    List<LocalVariableNode> scope;
+
+    SimulatedFrame(TypeTable types, int maxStack, int[] locals, List<LocalVariableNode> scope) {
+        this.types = types;
+        this.stack = new int[Math.max(maxStack, 4)];
+        this.locals = locals;
+        this.scope = scope;
+    }
+
+    void push(int type) {
+        if (stackSize == stack.length)
+            stack = Arrays.copyOf(stack, stackSize * 2);
+
+        stack[stackSize++] = type;
+    }
+
+    /**
+     * Push a value to the operand stack, followed by a Top value if it is a Cat2 value
+     * @param type Type id of the value
+     */
+    void pushValue(int type) {
+        push(type);
+        if (TypeTable.isWide(type))
+            push(TypeTable.topOf(type));
+    }
+
+    int pop() {
+        return stack[--stackSize];
+    }
+
+    void pop(int count) {
+        stackSize -= count;
+    }
+
+    /**
+     * Get a value on the operand stack
+     * @param depth Depth of the value, where 0 is the top of the stack
+     * @return Type id of the value
+     */
+    int peek(int depth) {
+        return stack[stackSize - 1 - depth];
+    }
+
+    /**
+     * Insert a value into the operand stack
+     * @param depth Amount of values to insert the value below
+     * @param type Type id of the value
+     */
+    void insert(int depth, int type) {
+        push(type);
+        System.arraycopy(stack, stackSize - 1 - depth, stack, stackSize - depth, depth);
+        stack[stackSize - 1 - depth] = type;
+    }
+
+    /**
+     * Replace all occurrences of a value in the stack and tracked locals
+     * @param find Type id to replace
+     * @param replace Type id to replace with
+     */
+    void replace(int find, int replace) {
+        for (int i = 0; i < stackSize; ++i)
+            if (stack[i] == find)
+                stack[i] = replace;
+
+        if (locals != null)
+            for (int i = 0; i < locals.length; ++i)
+                if (locals[i] == find)
+                    locals[i] = replace;
+    }
+
+    void clear() {
+        stackSize = 0;
+    }
+}
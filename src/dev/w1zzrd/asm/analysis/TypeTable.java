@@ -0,0 +1,378 @@
+package dev.w1zzrd.asm.analysis;
+
+import dev.w1zzrd.asm.exception.StateAnalysisException;
+import dev.w1zzrd.asm.signature.DescriptorView;
+import dev.w1zzrd.asm.signature.TypeSignature;
+import jdk.internal.org.objectweb.asm.Opcodes;
+import jdk.internal.org.objectweb.asm.tree.AbstractInsnNode;
+import jdk.internal.org.objectweb.asm.tree.LabelNode;
+import jdk.internal.org.objectweb.asm.tree.TypeInsnNode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interning table of verification types used during frame state simulation. Every distinct type is represented by an
+ * int id, such that frames can be stored as plain int arrays. Lookups of types which have already been interned do not
+ * allocate, so simulating instructions which only refer to known types produces no garbage. {@link TypeSignature}
+ * instances are only created (once per type) when types are requested through the public API.<br>
+ * <br>
+ * Booleans, bytes, chars and shorts are all represented as ints, as they are by the JVM verifier.
+ */
+final class TypeTable {
+    static final int TOP = 0;
+    static final int INT = 1;
+    static final int FLOAT = 2;
+    static final int LONG = 3;
+    static final int DOUBLE = 4;
+    static final int NULL = 5;
+
+    /**
+     * Second halves of Cat2 values
+     */
+    static final int LONG_TOP = 6;
+    static final int DOUBLE_TOP = 7;
+
+    static final int OBJECT = 8;
+    static final int STRING = 9;
+    static final int CLASS = 10;
+    static final int METHOD_TYPE = 11;
+    static final int METHOD_HANDLE = 12;
+    static final int THROWABLE = 13;
+
+    /**
+     * Marker for "no value", e.g. the return type of void methods
+     */
+    static final int VOID = -1;
+
+    private static final int UNKNOWN = -2;
+
+    // Per-type data, indexed by type id
+    private String[] descriptors = new String[32];
+    private boolean[] uninitialized = new boolean[32];
+    private int[] counterparts = new int[32];
+    private int[] elements = new int[32];
+    private TypeSignature[] signatures = new TypeSignature[32];
+    private int count = 0;
+
+    private final HashMap<String, Integer> initializedTypes = new HashMap<>();
+
+    // Caches keyed by the strings found in instructions, so that looking up a type never requires a substring
+    private final HashMap<String, Integer> byDescriptor = new HashMap<>();
+    private final HashMap<String, Integer> byInternalName = new HashMap<>();
+    private final HashMap<String, Integer> arraysByInternalName = new HashMap<>();
+    private final HashMap<String, int[]> methodDescriptors = new HashMap<>();
+    private final int[] primitiveArrays = new int[12];
+    private final DescriptorView view = new DescriptorView();
+
+    TypeTable() {
+        // Order has to match the constants
+        add("T", false);
+        add("I", false);
+        add("F", false);
+        add("J", false);
+        add("D", false);
+        add("null", false);
+        add("J", false);
+        add("D", false);
+        reference("Ljava/lang/Object;");
+        reference("Ljava/lang/String;");
+        reference("Ljava/lang/Class;");
+        reference("Ljava/lang/invoke/MethodType;");
+        reference("Ljava/lang/invoke/MethodHandle;");
+        reference("Ljava/lang/Throwable;");
+
+        Arrays.fill(primitiveArrays, UNKNOWN);
+    }
+
+    /**
+     * Get the type id of a field descriptor
+     * @param desc Descriptor to get type of
+     * @return Type id, or {@link #VOID} for the void type
+     */
+    int descriptor(String desc) {
+        if (desc.length() == 1)
+            switch (desc.charAt(0)) {
+                case 'Z':
+                case 'B':
+                case 'C':
+                case 'S':
+                case 'I':
+                    return INT;
+                case 'F':
+                    return FLOAT;
+                case 'J':
+                    return LONG;
+                case 'D':
+                    return DOUBLE;
+                case 'V':
+                    return VOID;
+            }
+
+        final Integer cached = byDescriptor.get(desc);
+        if (cached != null)
+            return cached;
+
+        final int id = reference(desc);
+        byDescriptor.put(desc, id);
+        return id;
+    }
+
+    /**
+     * Get the type id of the operand of a type instruction, i.e. a class internal name or an array descriptor
+     * @param name Internal name to get type of
+     * @return Type id
+     */
+    int internalName(String name) {
+        final Integer cached = byInternalName.get(name);
+        if (cached != null)
+            return cached;
+
+        final int id = reference(name.charAt(0) == '[' ? name : "L" + name + ";");
+        byInternalName.put(name, id);
+        return id;
+    }
+
+    /**
+     * Get the type id of a one-dimensional array of the type declared by the operand of a type instruction
+     * @param name Internal name of the element type
+     * @return Type id of the array type
+     */
+    int arrayOf(String name) {
+        final Integer cached = arraysByInternalName.get(name);
+        if (cached != null)
+            return cached;
+
+        final int id = reference(name.charAt(0) == '[' ? "[" + name : "[L" + name + ";");
+        arraysByInternalName.put(name, id);
+        return id;
+    }
+
+    /**
+     * Get the type id of a primitive array
+     * @param operand Operand of a NEWARRAY instruction (see {@link Opcodes#T_INT})
+     * @return Type id of the array type
+     */
+    int primitiveArray(int operand) {
+        if (primitiveArrays[operand] == UNKNOWN)
+            primitiveArrays[operand] = reference("[" + "ZCFDBSIJ".charAt(operand - Opcodes.T_BOOLEAN));
+
+        return primitiveArrays[operand];
+    }
+
+    /**
+     * Get the element type of an array type
+     * @param array Type id of the array type
+     * @return Type id of the element type. The null type yields the null type and non-array types yield Object
+     */
+    int elementOf(int array) {
+        if (array == NULL)
+            return NULL;
+
+        if (elements[array] == UNKNOWN) {
+            final String desc = descriptors[array];
+            elements[array] = !uninitialized[array] && desc.charAt(0) == '[' ? descriptor(desc.substring(1)) : OBJECT;
+        }
+
+        return elements[array];
+    }
+
+    /**
+     * Get the amount of stack slots occupied by the arguments of a method
+     * @param desc Method descriptor
+     * @return Argument slot count (excluding any receiver)
+     */
+    int argumentSlots(String desc) {
+        return method(desc)[0];
+    }
+
+    /**
+     * Get the return type of a method
+     * @param desc Method descriptor
+     * @return Type id of the return type, or {@link #VOID}
+     */
+    int returnType(String desc) {
+        return method(desc)[1];
+    }
+
+    private int[] method(String desc) {
+        int[] cached = methodDescriptors.get(desc);
+        if (cached != null)
+            return cached;
+
+        view.reset(desc);
+        cached = new int[]{ view.getArgSlots(), descriptor(desc.substring(view.getReturnOffset())) };
+        methodDescriptors.put(desc, cached);
+        return cached;
+    }
+
+    /**
+     * Get the type id of a raw frame type (as declared in a {@link jdk.internal.org.objectweb.asm.tree.FrameNode})
+     * @param type Raw frame type
+     * @param owner Internal name of the class declaring the analyzed method
+     * @return Type id
+     */
+    int frameType(Object type, String owner) {
+        if (type instanceof String)
+            return internalName((String) type);
+
+        if (type instanceof Integer)
+            switch ((Integer) type) {
+                case 0: // Top
+                    return TOP;
+                case 1: // Int
+                    return INT;
+                case 2: // Float
+                    return FLOAT;
+                case 3: // Double
+                    return DOUBLE;
+                case 4: // Long
+                    return LONG;
+                case 5: // Null
+                    return NULL;
+                case 6: // Uninitialized this
+                    return uninitialized(internalName(owner));
+            }
+
+        // Uninitialized values are declared by the label of the NEW instruction that created them
+        if (type instanceof LabelNode) {
+            AbstractInsnNode alloc = (LabelNode) type;
+            while (alloc != null && alloc.getOpcode() == -1)
+                alloc = alloc.getNext();
+
+            if (alloc != null && alloc.getOpcode() == Opcodes.NEW)
+                return uninitialized(internalName(((TypeInsnNode) alloc).desc));
+        }
+
+        throw new StateAnalysisException(String.format("Could not determine type signature for frame type %s", type));
+    }
+
+    /**
+     * Get the uninitialized counterpart of an object type
+     * @param type Type id of an initialized object type
+     * @return Type id of the uninitialized type
+     */
+    int uninitialized(int type) {
+        if (uninitialized[type])
+            return type;
+
+        if (counterparts[type] == UNKNOWN) {
+            final int id = add(descriptors[type], true);
+            counterparts[type] = id;
+            counterparts[id] = type;
+        }
+
+        return counterparts[type];
+    }
+
+    /**
+     * Get the initialized counterpart of an uninitialized object type
+     * @param type Type id of an uninitialized type
+     * @return Type id of the initialized type
+     */
+    int initialized(int type) {
+        return uninitialized[type] ? counterparts[type] : type;
+    }
+
+    boolean isUninitialized(int type) {
+        return uninitialized[type];
+    }
+
+    boolean isReference(int type) {
+        return type == NULL || (type >= OBJECT && !uninitialized[type]);
+    }
+
+    static boolean isWide(int type) {
+        return type == LONG || type == DOUBLE;
+    }
+
+    /**
+     * Get the second half of a Cat2 type
+     * @param type Type id of a Cat2 type
+     * @return Type id of the Top value following the given type
+     */
+    static int topOf(int type) {
+        return type == LONG ? LONG_TOP : DOUBLE_TOP;
+    }
+
+    /**
+     * Merge two types at a control flow join
+     * @param current Type id of the value currently recorded
+     * @param incoming Type id of the value flowing in
+     * @return Type id of the merged value
+     */
+    int merge(int current, int incoming) {
+        if (current == incoming || current == TOP)
+            return current;
+
+        // Both values are object references, so we can (imprecisely) settle on the common supertype of all objects
+        if (isReference(current) && isReference(incoming))
+            return current == NULL ? incoming : incoming == NULL ? current : OBJECT;
+
+        return TOP;
+    }
+
+    /**
+     * Materialize a type id as a {@link TypeSignature}
+     * @param type Type id
+     * @return Signature of the type
+     */
+    TypeSignature toSignature(int type) {
+        TypeSignature sig = signatures[type];
+        if (sig == null) {
+            switch (type) {
+                case TOP:
+                    sig = new TypeSignature('V', true);
+                    break;
+                case LONG_TOP:
+                    sig = new TypeSignature('J', true);
+                    break;
+                case DOUBLE_TOP:
+                    sig = new TypeSignature('D', true);
+                    break;
+                case NULL:
+                    sig = new TypeSignature();
+                    break;
+                case INT:
+                case FLOAT:
+                case LONG:
+                case DOUBLE:
+                    sig = TypeSignature.of(descriptors[type]);
+                    break;
+                default:
+                    sig = new TypeSignature(descriptors[type], 0, uninitialized[type]);
+            }
+
+            signatures[type] = sig;
+        }
+
+        return sig;
+    }
+
+    private int reference(String desc) {
+        final Integer cached = initializedTypes.get(desc);
+        if (cached != null)
+            return cached;
+
+        final int id = add(desc, false);
+        initializedTypes.put(desc, id);
+        return id;
+    }
+
+    private int add(String desc, boolean isUninitialized) {
+        if (count == descriptors.length) {
+            final int capacity = count * 2;
+            descriptors = Arrays.copyOf(descriptors, capacity);
+            uninitialized = Arrays.copyOf(uninitialized, capacity);
+            counterparts = Arrays.copyOf(counterparts, capacity);
+            elements = Arrays.copyOf(elements, capacity);
+            signatures = Arrays.copyOf(signatures, capacity);
+        }
+
+        descriptors[count] = desc;
+        uninitialized[count] = isUninitialized;
+        counterparts[count] = UNKNOWN;
+        elements[count] = UNKNOWN;
+        return count++;
+    }
+}
@@ -0,0 +1,22 @@
+package dev.w1zzrd.asm.exception;
+
+public class RetransformationException extends RuntimeException {
+    public RetransformationException() {
+    }
+
+    public RetransformationException(String message) {
+        super(message);
+    }
+
+    public RetransformationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public RetransformationException(Throwable cause) {
+        super(cause);
+    }
+
+    public RetransformationException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
@@ -0,0 +1,243 @@
+package dev.w1zzrd.asm.signature;
+
+import java.util.Arrays;
+
+/**
+ * Lightweight, read-only view of a method descriptor. Unlike {@link MethodSignature}, a view does not parse the
+ * descriptor into type objects: it only records where each argument starts in the original string. Argument counts,
+ * slot sizes and type classifications can therefore be read without allocating. A view may be pointed at another
+ * descriptor (see {@link #reset(String)}), in which case no allocation occurs unless the new descriptor declares more
+ * arguments than any descriptor previously viewed.<br>
+ * <br>
+ * Types are classified by their sort, i.e. the first character of their descriptor: one of the primitive identifiers
+ * (Z, B, C, S, I, J, F, D or V), '[' for arrays or 'L' for objects.
+ */
+public final class DescriptorView {
+    private String desc;
+    private int[] offsets = new int[8];
+    private int argCount;
+    private int argSlots;
+    private int returnOffset;
+
+    /**
+     * Create a view which doesn't refer to any descriptor yet
+     */
+    public DescriptorView() {}
+
+    /**
+     * Create a view of a method descriptor
+     * @param desc Method descriptor, optionally prefixed by a method name
+     */
+    public DescriptorView(String desc) {
+        reset(desc);
+    }
+
+    /**
+     * Point this view at another method descriptor
+     * @param desc Method descriptor, optionally prefixed by a method name
+     * @return This view
+     */
+    public DescriptorView reset(String desc) {
+        // Don't leave a view of the previous descriptor behind if this one turns out to be invalid
+        this.desc = null;
+        this.argCount = 0;
+
+        final int len = desc.length();
+
+        int index = desc.indexOf('(');
+        if (index < 0)
+            throw new IllegalArgumentException(String.format("Invalid method signature \"%s\"", desc));
+
+        int count = 0, slots = 0;
+        ++index;
+        while (index < len && desc.charAt(index) != ')') {
+            if (count == offsets.length)
+                offsets = Arrays.copyOf(offsets, count * 2);
+
+            offsets[count++] = index;
+            slots += isWide(desc.charAt(index)) ? 2 : 1;
+            index = skipType(desc, index);
+        }
+
+        if (index >= len - 1 || skipType(desc, index + 1) != len)
+            throw new IllegalArgumentException(String.format("Invalid method signature \"%s\"", desc));
+
+        this.desc = desc;
+        this.argCount = count;
+        this.argSlots = slots;
+        this.returnOffset = index + 1;
+
+        return this;
+    }
+
+    /**
+     * Get the descriptor this view refers to
+     * @return Viewed descriptor
+     */
+    public String getDescriptor() {
+        return desc;
+    }
+
+    public int getArgCount() {
+        return argCount;
+    }
+
+    /**
+     * Get the amount of local variable slots occupied by the arguments of the method
+     * @return Argument slot count, excluding any implicit "this" argument
+     */
+    public int getArgSlots() {
+        return argSlots;
+    }
+
+    /**
+     * Get the index in the descriptor at which an argument type starts
+     * @param index Index of the argument
+     * @return Offset of the argument type in the descriptor
+     */
+    public int getArgOffset(int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    /**
+     * Get the index in the descriptor directly after the end of an argument type
+     * @param index Index of the argument
+     * @return End offset (exclusive) of the argument type in the descriptor
+     */
+    public int getArgEnd(int index) {
+        checkIndex(index);
+        return index + 1 == argCount ? returnOffset - 1 : offsets[index + 1];
+    }
+
+    /**
+     * Get the sort of an argument type
+     * @param index Index of the argument
+     * @return First character of the argument type descriptor
+     */
+    public char getArgSort(int index) {
+        return desc.charAt(getArgOffset(index));
+    }
+
+    /**
+     * Get the amount of local variable slots occupied by an argument
+     * @param index Index of the argument
+     * @return 2 for longs and doubles, else 1
+     */
+    public int getArgSlots(int index) {
+        return isWide(getArgSort(index)) ? 2 : 1;
+    }
+
+    /**
+     * Get the local variable index of an argument
+     * @param index Index of the argument
+     * @return Sum of the slot sizes of all preceding arguments, excluding any implicit "this" argument
+     */
+    public int getArgLocal(int index) {
+        checkIndex(index);
+
+        int local = 0;
+        for (int i = 0; i < index; ++i)
+            local += isWide(desc.charAt(offsets[i])) ? 2 : 1;
+
+        return local;
+    }
+
+    /**
+     * Get the descriptor of an argument type. Unlike the other accessors, this allocates a new string
+     * @param index Index of the argument
+     * @return Type descriptor of the argument
+     */
+    public String getArg(int index) {
+        return desc.substring(getArgOffset(index), getArgEnd(index));
+    }
+
+    /**
+     * Get the internal name of a reference argument type as declared in stack map frames, i.e. the class name for
+     * object types and the descriptor for array types. This allocates a new string
+     * @param index Index of the argument
+     * @return Internal name of the argument type
+     */
+    public String getArgInternalName(int index) {
+        final int start = getArgOffset(index), end = getArgEnd(index);
+        return desc.charAt(start) == 'L' ? desc.substring(start + 1, end - 1) : desc.substring(start, end);
+    }
+
+    public int getReturnOffset() {
+        return returnOffset;
+    }
+
+    /**
+     * Get the sort of the return type
+     * @return First character of the return type descriptor
+     */
+    public char getReturnSort() {
+        return desc.charAt(returnOffset);
+    }
+
+    public boolean isVoid() {
+        return getReturnSort() == 'V';
+    }
+
+    /**
+     * Get the amount of operand stack slots occupied by the return value
+     * @return 0 for void, 2 for longs and doubles, else 1
+     */
+    public int getReturnSlots() {
+        final char sort = getReturnSort();
+        return sort == 'V' ? 0 : isWide(sort) ? 2 : 1;
+    }
+
+    /**
+     * Get the descriptor of the return type. This allocates a new string
+     * @return Type descriptor of the return type
+     */
+    public String getReturn() {
+        return desc.substring(returnOffset);
+    }
+
+    @Override
+    public String toString() {
+        return desc;
+    }
+
+    /**
+     * Whether or not a type sort denotes a primitive (or void) type
+     * @param sort Type sort
+     * @return True for primitive types, false for arrays and objects
+     */
+    public static boolean isPrimitive(char sort) {
+        return sort != '[' && sort != 'L';
+    }
+
+    /**
+     * Whether or not a type sort denotes a Cat2 type, i.e. a type occupying two slots
+     * @param sort Type sort
+     * @return True for longs and doubles, else false
+     */
+    public static boolean isWide(char sort) {
+        return sort == 'J' || sort == 'D';
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= argCount)
+            throw new IndexOutOfBoundsException(String.format("Argument index %d out of bounds for %s", index, desc));
+    }
+
+    private static int skipType(String desc, int index) {
+        final int len = desc.length();
+        while (index < len && desc.charAt(index) == '[')
+            ++index;
+
+        if (index >= len)
+            throw new IllegalArgumentException(String.format("Invalid method signature \"%s\"", desc));
+
+        if (desc.charAt(index) == 'L') {
+            index = desc.indexOf(';', index);
+            if (index < 0)
+                throw new IllegalArgumentException(String.format("Invalid method signature \"%s\"", desc));
+        }
+
+        return index + 1;
+    }
+}
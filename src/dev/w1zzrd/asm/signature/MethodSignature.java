@@ -3,10 +3,49 @@ package dev.w1zzrd.asm.signature;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Immutable representation of a method descriptor. Instances are value objects: "modifying" a signature (see
+ * {@link #withArg(int, TypeSignature)} and {@link #withRet(TypeSignature)}) produces a new signature
+ */
 public class MethodSignature {
+    /**
+     * Maximum amount of cached parsed signatures. Once exceeded, the cache is cleared
+     */
+    private static final int CACHE_LIMIT = 4096;
+    private static final ConcurrentHashMap<String, MethodSignature> cache = new ConcurrentHashMap<>();
+
     private final TypeSignature[] args;
-    private TypeSignature ret;
+    private final TypeSignature ret;
+
+    // Precomputed, since signatures are frequently compared, hashed and converted to descriptors
+    private final String descriptor;
+    private final int argSlots;
+    private final int hash;
+
+    /**
+     * Get the parsed representation of a method descriptor. Parsed signatures are cached, so repeatedly getting the
+     * signature of the same descriptor yields the same instance
+     * @param sig Method descriptor, optionally prefixed by a method name
+     * @return Signature of the method descriptor
+     */
+    public static MethodSignature of(String sig) {
+        MethodSignature cached = cache.get(sig);
+        if (cached == null) {
+            cached = new MethodSignature(sig);
+
+            // Keep the cache bounded. Evicting everything is crude, but cheap and keeps lookups lock-free
+            if (cache.size() >= CACHE_LIMIT)
+                cache.clear();
+
+            final MethodSignature raced = cache.putIfAbsent(sig, cached);
+            if (raced != null)
+                cached = raced;
+        }
+
+        return cached;
+    }
 
     public MethodSignature(String sig) {
         // Minimal signature size is 3. For example: "()V". With name, minimal length is 4: "a()V"
@@ -45,11 +84,44 @@ public class MethodSignature {
 
         this.args = args.toArray(new TypeSignature[0]);
         this.ret = ret;
+        this.descriptor = toDescriptor(this.ret, this.args);
+        this.argSlots = countSlots(this.args);
+        this.hash = computeHash(this.ret, this.args);
     }
 
     private MethodSignature(TypeSignature ret, TypeSignature[] args) {
         this.ret = ret;
         this.args = args;
+        this.descriptor = toDescriptor(ret, args);
+        this.argSlots = countSlots(args);
+        this.hash = computeHash(ret, args);
+    }
+
+    private static String toDescriptor(TypeSignature ret, TypeSignature[] args) {
+        int size = 2;
+        for (TypeSignature arg : args)
+            size += arg.getSig().length();
+        size += ret.getSig().length();
+
+        StringBuilder builder = new StringBuilder(size);
+        builder.append('(');
+
+        for (TypeSignature arg : args)
+            builder.append(arg.getSig());
+
+        return builder.append(')').append(ret.getSig()).toString();
+    }
+
+    private static int countSlots(TypeSignature[] args) {
+        int slots = 0;
+        for (TypeSignature arg : args)
+            slots += arg.stackFrameElementWith();
+
+        return slots;
+    }
+
+    private static int computeHash(TypeSignature ret, TypeSignature[] args) {
+        return 31 * Objects.hash(ret) + Arrays.hashCode(args);
     }
 
     private static TypeSignature parseOneSignature(String sig, int startAt) {
@@ -64,7 +136,7 @@ public class MethodSignature {
             case 'F':
             case 'D':
             case 'V': {
-                return new TypeSignature(sig.substring(startAt, startAt + 1));
+                return TypeSignature.of(sig.charAt(startAt));
             }
             case '[': {
                 for (int i = startAt + 1; i < len; ++i)
@@ -103,8 +175,27 @@ public class MethodSignature {
         return args[index];
     }
 
-    public void setArg(int idx, TypeSignature sig) {
-        args[idx] = sig;
+    /**
+     * Get the amount of local variable slots occupied by the arguments of the method
+     * @return Argument slot count, excluding any implicit "this" argument
+     */
+    public int getArgSlots() {
+        return argSlots;
+    }
+
+    /**
+     * Create a copy of this signature with one argument type replaced
+     * @param idx Index of the argument to replace
+     * @param sig Type of the argument
+     * @return A signature with the given argument type, or this if the argument type is unchanged
+     */
+    public MethodSignature withArg(int idx, TypeSignature sig) {
+        if (args[idx].equals(sig))
+            return this;
+
+        final TypeSignature[] newArgs = Arrays.copyOf(args, args.length);
+        newArgs[idx] = sig;
+        return new MethodSignature(ret, newArgs);
     }
 
     public MethodSignature withoutLastArg() {
@@ -114,8 +205,13 @@ public class MethodSignature {
         return new MethodSignature(ret, Arrays.copyOf(args, args.length - 1));
     }
 
-    public void setRet(TypeSignature sig) {
-        ret = sig;
+    /**
+     * Create a copy of this signature with the return type replaced
+     * @param sig Return type
+     * @return A signature with the given return type, or this if the return type is unchanged
+     */
+    public MethodSignature withRet(TypeSignature sig) {
+        return ret.equals(sig) ? this : new MethodSignature(sig, args);
     }
 
     public TypeSignature getRet() {
@@ -124,18 +220,7 @@ public class MethodSignature {
 
     @Override
     public String toString() {
-        int size = 2;
-        for (int i = 0; i < args.length; ++i)
-            size += args[i].getSig().length();
-        size += ret.getSig().length();
-
-        StringBuilder builder = new StringBuilder(size);
-        builder.append('(');
-
-        for (int i = 0; i < args.length; ++i)
-            builder.append(args[i].getSig());
-
-        return builder.append(')').append(ret.getSig()).toString();
+        return descriptor;
     }
 
     @Override
@@ -143,13 +228,11 @@ public class MethodSignature {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         MethodSignature that = (MethodSignature) o;
-        return Arrays.equals(args, that.args) && ret.equals(that.ret);
+        return hash == that.hash && Arrays.equals(args, that.args) && ret.equals(that.ret);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(ret);
-        result = 31 * result + Arrays.hashCode(args);
-        return result;
+        return hash;
     }
 }
@@ -6,12 +6,46 @@ import java.util.Arrays;
 import java.util.Objects;
 
 public class TypeSignature {
+    /**
+     * Shared instances of the primitive types, indexed by their (upper-case) type identifier
+     */
+    private static final TypeSignature[] primitives = new TypeSignature['Z' + 1];
+
+    static {
+        for (char primitive : "ZBCSIJFDV".toCharArray())
+            primitives[primitive] = new TypeSignature(Character.toString(primitive));
+    }
+
     private final String sig;
     private final int arrayDepth;
 
     private final TypeModifier modifier;
     private final MethodSignature dynamicRef;
 
+    private int hash;
+
+    /**
+     * Get the signature of a type. Primitive types (including void) are represented by shared instances
+     * @param sig Type descriptor
+     * @return Signature of the type
+     */
+    public static TypeSignature of(String sig) {
+        return sig.length() == 1 ? of(sig.charAt(0)) : new TypeSignature(sig);
+    }
+
+    /**
+     * Get the shared signature instance of a primitive type
+     * @param primitive Primitive type identifier (Z, B, C, S, I, J, F, D or V)
+     * @return Signature of the primitive type
+     */
+    public static TypeSignature of(char primitive) {
+        final char type = Character.toUpperCase(primitive);
+        if (type < primitives.length && primitives[type] != null)
+            return primitives[type];
+
+        throw new TypeSignatureParseException(String.format("Unknown type signature \"%c\"", primitive));
+    }
+
     public TypeSignature(String sig, int reportedArrayDepth, boolean isUninitialized) {
         // Signature cannot be an empty string
         if (sig.length() == 0)
@@ -168,7 +202,7 @@ public class TypeSignature {
         if (!isArray())
             throw new SignatureInstanceMismatchException("Attempt to get element type of non-array!");
 
-        return new TypeSignature(sig.substring(1));
+        return of(sig.substring(1));
     }
 
     /**
@@ -179,7 +213,7 @@ public class TypeSignature {
         if (!isArray())
             return this;
 
-        return new TypeSignature(sig.substring(arrayDepth));
+        return of(sig.substring(arrayDepth));
     }
 
     /**
@@ -258,19 +292,25 @@ public class TypeSignature {
      */
     @Override
     public boolean equals(Object other) {
-        return other instanceof TypeSignature &&
+        return other == this || other instanceof TypeSignature &&
                 ((TypeSignature)other).sig.equals(sig) &&
                 ((TypeSignature) other).modifier == modifier;
     }
 
     /**
      * Computes the hashcode of this object. This mimics the equivalence specified by
-     * {@link TypeSignature#equals(Object)} by simply being the hashcode of the signature string
+     * {@link TypeSignature#equals(Object)} by simply being the hashcode of the signature string. The hashcode is
+     * computed once and then cached
      * @return The hashcode of the represented signature string
      */
     @Override
     public int hashCode() {
-        return Objects.hash(sig, modifier);
+        // Racy, but benign, like String.hashCode
+        int h = hash;
+        if (h == 0)
+            hash = h = Objects.hash(sig, modifier);
+
+        return h;
     }
 
 
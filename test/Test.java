@@ -1,14 +1,27 @@
-import dev.w1zzrd.asm.Combine;
-import dev.w1zzrd.asm.Injector;
+import dev.w1zzrd.asm.*;
+import jdk.internal.org.objectweb.asm.ClassReader;
+import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.tree.ClassNode;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static jdk.internal.org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
 
 public class Test {
-    public static void main(String... args) throws IOException {
+    public static void main(String... args) throws Exception {
         ClassLoader.getSystemClassLoader().setDefaultAssertionStatus(false);
 
+        // Weaving checks only read class data, so they run before MergeTest is defined (and dumped) below
+        checkWeaving();
+
         // Load target class, inject all annotated classes and load compiled bytecode into JVM
         dumpFile(Injector.injectAll("MergeTest"), "MergeTest").compile();
 
@@ -23,6 +36,87 @@ public class Test {
         r.run();
     }
 
+    /**
+     * Weave MergeTest through every weaving mode and check that they all agree
+     */
+    private static void checkWeaving() throws Exception {
+        final byte[] target = Loader.getClassBytes("MergeTest");
+        final byte[] graft = Loader.getClassBytes("MergeInject");
+        final byte[] treeWoven = Injector.injectAll("MergeTest").toByteArray();
+
+        // Streaming mode only copies untouched methods verbatim, so it must produce the same members as tree mode
+        final byte[] streamWoven = Injector.weave(target, Collections.singletonList(graft), COMPUTE_MAXS);
+        check(Arrays.equals(normalize(streamWoven), normalize(treeWoven)), "Streaming weave matches tree weave");
+
+        // One template applied to two targets (one in each mode) must inject exactly what the injector does
+        final GraftTemplate template = new GraftTemplate(new GraftSource(Loader.readClass(graft)));
+        final Combine treeTarget = new Combine(Loader.readClass(target));
+        final Combine streamTarget = new Combine(new ClassReader(target));
+        template.applyTo(treeTarget);
+        template.applyTo(streamTarget);
+        check(Arrays.equals(normalize(treeTarget.toByteArray()), normalize(treeWoven)), "Template applied to tree target");
+        check(Arrays.equals(normalize(streamTarget.toByteArray()), normalize(treeWoven)), "Template applied to streaming target");
+
+        // Classes defined by a class loader other than the bootstrap loader are verified, so this also verifies the
+        // streaming weave. MergeTest is on the classpath, so the loader must not delegate to the application loader
+        final WeavingClassLoader loader = new WeavingClassLoader(
+                getClasspath(Test.class, Combine.class),
+                ClassLoader.getSystemClassLoader().getParent(),
+                null
+        );
+        final Class<?> loaded = Class.forName("MergeTest", true, loader);
+        // The injected constructor is package-private, and the woven class lives in another runtime package than Test
+        final Constructor<?> constructor = loaded.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        final Object instance = constructor.newInstance();
+        check(loaded.getClassLoader() == loader && instance instanceof Runnable, "MergeTest woven by WeavingClassLoader");
+        check("Modified".equals(loaded.getMethod("test").invoke(instance)), "Woven method called through WeavingClassLoader");
+
+        // Round trip through the pipeline: only the target is woven and everything else is passed through untouched
+        final Path classes = Paths.get(Test.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        final Map<String, byte[]> entries = new HashMap<>();
+        final int woven = new WeavingPipeline(Injector.findGraftSources(ClassLoader.getSystemClassLoader())).run(
+                Files.isDirectory(classes) ?
+                        WeavingPipeline.directorySource(classes) :
+                        WeavingPipeline.archiveSource(classes.toFile()),
+                WeavingPipeline.mapSink(entries)
+        );
+        check(woven == 1 && Arrays.equals(entries.get("MergeTest.class"), streamWoven), "Pipeline weaves MergeTest");
+        check(Arrays.equals(entries.get("MergeInject.class"), graft), "Pipeline passes other entries through");
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError("Failed: " + description);
+
+        System.out.println("Passed: " + description);
+    }
+
+    /**
+     * Rewrite class data with members in a fixed order, such that classes with the same members compare equal
+     * regardless of member and constant pool order
+     * @param data Class data to normalize
+     * @return Normalized class data
+     */
+    private static byte[] normalize(byte[] data) {
+        final ClassNode node = new ClassNode();
+        new ClassReader(data).accept(node, 0);
+        node.methods.sort(Comparator.comparing(method -> method.name + method.desc));
+        node.fields.sort(Comparator.comparing(field -> field.name));
+
+        final ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private static URL[] getClasspath(Class<?>... classes) {
+        final LinkedHashSet<URL> urls = new LinkedHashSet<>();
+        for (Class<?> cls : classes)
+            urls.add(cls.getProtectionDomain().getCodeSource().getLocation());
+
+        return urls.toArray(new URL[0]);
+    }
+
     public static Combine dumpFile(Combine comb, String name) {
         File f = new File(name + ".class");
         try {